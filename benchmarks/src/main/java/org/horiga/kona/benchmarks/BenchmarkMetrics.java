@@ -0,0 +1,69 @@
+package org.horiga.kona.benchmarks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Populates the registries of the benchmarks.
+ */
+final class BenchmarkMetrics {
+	private static final int SAMPLES = 16;
+
+	private BenchmarkMetrics() {
+	}
+
+	/**
+	 * Registers {@code count} metrics of one type: gauge, counter, meter, timer or histogram.
+	 */
+	static void register(MetricRegistry registry, String type, int count) {
+		for (int i = 0; i < count; i++) {
+			registerMetric(registry, type, i);
+		}
+	}
+
+	/**
+	 * Registers {@code count} metrics in the mix of a typical service: 30% gauges, 40% counters and
+	 * 10% each of meters, timers and histograms.
+	 */
+	static void registerMixed(MetricRegistry registry, int count) {
+		for (int i = 0; i < count; i++) {
+			final int slot = i % 10;
+			registerMetric(registry, slot < 3 ? "gauge" : slot < 7 ? "counter" : slot == 7 ? "meter"
+					: slot == 8 ? "timer" : "histogram", i);
+		}
+	}
+
+	private static void registerMetric(MetricRegistry registry, String type, int i) {
+		final String name = MetricRegistry.name("benchmark", "service", type, Integer.toString(i));
+		switch (type) {
+			case "gauge":
+				final long value = i;
+				registry.register(name, (Gauge<Long>)() -> value);
+				break;
+			case "counter":
+				registry.counter(name).inc(i);
+				break;
+			case "meter":
+				registry.meter(name).mark(i);
+				break;
+			case "timer":
+				final Timer timer = registry.timer(name);
+				for (int s = 0; s < SAMPLES; s++) {
+					timer.update(1000L * (i % 100 + s), TimeUnit.MICROSECONDS);
+				}
+				break;
+			case "histogram":
+				final Histogram histogram = registry.histogram(name);
+				for (int s = 0; s < SAMPLES; s++) {
+					histogram.update(i % 100 + s);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown metric type: " + type);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.horiga.kona.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of {@code benchmarks.jar}. Accepts the usual JMH options, and unless they are
+ * given, adds the GC profiler and writes the results as JSON to {@code jmh-result.json}, to be
+ * compared between versions.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar EncodingBenchmark -rff encoding-1.0.0.json
+ * </pre>
+ */
+public final class BenchmarkRunner {
+	private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		final CommandLineOptions commandLine = new CommandLineOptions(args);
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!commandLine.getResult().hasValue()) {
+			options.result(DEFAULT_RESULT_FILE);
+		}
+		if (commandLine.getProfilers().isEmpty()) {
+			options.addProfiler(GCProfiler.class);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,75 @@
+package org.horiga.kona.benchmarks;
+
+import org.horiga.kona.reporter.BulkBuffer;
+import org.horiga.kona.reporter.BulkTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The '_bulk' requests per second of {@link BulkTransport} against a stub server over a kept-alive
+ * connection, plain and gzip compressed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkSendBenchmark {
+
+	@Param({"100", "2500"})
+	public int documents;
+
+	/**
+	 * The deflate level, -1 sends the batches uncompressed.
+	 */
+	@Param({"-1", "1"})
+	public int gzipLevel;
+
+	private StubBulkServer server;
+	private BulkTransport transport;
+	private BulkBuffer bulk;
+
+	@Setup
+	public void setUp() throws IOException {
+		server = new StubBulkServer();
+		transport = new BulkTransport(Collections.singletonList(server.endpoint()),
+				BulkTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS, BulkTransport.DEFAULT_READ_TIMEOUT_MILLIS,
+				BulkTransport.DEFAULT_FAILURE_THRESHOLD, BulkTransport.DEFAULT_OPEN_MILLIS,
+				gzipLevel, BulkTransport.DEFAULT_GZIP_MIN_BYTES);
+		bulk = new BulkBuffer(64 * 1024);
+		for (int i = 0; i < documents; i++) {
+			final String document = "{\"index\":{\"_index\":\"benchmark-2016.01.01\",\"_type\":\"timer\"}}\n"
+					+ "{\"@timestamp\":\"2016-01-01T00:00:00+09:00\",\"@name\":\"benchmark.service.timer." + i
+					+ "\",\"hostname\":\"benchmark-host\",\"max\":" + (i % 1000) + ".0,\"mean\":" + (i % 100)
+					+ ".5,\"min\":0.1,\"p50\":" + (i % 50) + ".0,\"p99\":" + (i % 900) + ".0,\"count\":" + i + "}\n";
+			bulk.write(document.getBytes(StandardCharsets.UTF_8));
+			bulk.documentWritten();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.close();
+	}
+
+	@Benchmark
+	public int send() throws IOException {
+		return transport.send(bulk).getStatus();
+	}
+}
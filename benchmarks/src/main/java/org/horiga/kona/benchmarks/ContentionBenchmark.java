@@ -0,0 +1,75 @@
+package org.horiga.kona.benchmarks;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import org.horiga.kona.metrics.IntervalMeter;
+import org.horiga.kona.metrics.ResettableCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The updates per second of a single metric shared by every thread, for the striped
+ * {@link ResettableCounter} and {@link IntervalMeter} against the stock {@link Counter} and
+ * {@link Meter}, at 1, 8 and 64 threads:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ContentionBenchmark
+ * </pre>
+ * The contention only shows on a host with as many cores as threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class ContentionBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Metrics {
+		final Counter counter = new Counter();
+		final ResettableCounter resettableCounter = new ResettableCounter();
+		final Meter meter = new Meter();
+		final IntervalMeter intervalMeter = new IntervalMeter();
+	}
+
+	@Benchmark
+	public void counter(Metrics metrics) {
+		metrics.counter.inc();
+	}
+
+	@Benchmark
+	public void resettableCounter(Metrics metrics) {
+		metrics.resettableCounter.inc();
+	}
+
+	@Benchmark
+	public void meter(Metrics metrics) {
+		metrics.meter.mark();
+	}
+
+	@Benchmark
+	public void intervalMeter(Metrics metrics) {
+		metrics.intervalMeter.mark();
+	}
+
+	@Threads(1)
+	public static class Threads1 extends ContentionBenchmark {
+	}
+
+	@Threads(8)
+	public static class Threads8 extends ContentionBenchmark {
+	}
+
+	@Threads(64)
+	public static class Threads64 extends ContentionBenchmark {
+	}
+}
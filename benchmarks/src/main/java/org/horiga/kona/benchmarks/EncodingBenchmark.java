@@ -0,0 +1,62 @@
+package org.horiga.kona.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import org.horiga.kona.reporter.ElasticsearchReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The snapshot and the encoding of one metric document per type.
+ * <p>
+ * The reporter is disabled, so {@code report()} encodes the '_bulk' batches and hands them to the
+ * sender threads which discard them. The scores are per metric; run with {@code -prof gc} for the
+ * allocation per metric ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+	private static final int METRICS = 10000;
+
+	@Param({"gauge", "counter", "meter", "timer", "histogram"})
+	public String type;
+
+	private ElasticsearchReporter reporter;
+
+	@Setup
+	public void setUp() {
+		final MetricRegistry registry = new MetricRegistry();
+		BenchmarkMetrics.register(registry, type, METRICS);
+		reporter = ElasticsearchReporter.forRegistry(registry, "benchmark-")
+				.hostname("benchmark-host")
+				.enabled(false)
+				.build("127.0.0.1:9200");
+	}
+
+	@TearDown
+	public void tearDown() {
+		reporter.stop();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(METRICS)
+	public void encode() {
+		reporter.report();
+	}
+}
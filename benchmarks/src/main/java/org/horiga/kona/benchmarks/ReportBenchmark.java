@@ -0,0 +1,59 @@
+package org.horiga.kona.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import org.horiga.kona.reporter.ElasticsearchReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency of a whole report cycle against a stub '_bulk' server, from the snapshot of the first
+ * metric to the response of the last batch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int metrics;
+
+	private StubBulkServer server;
+	private ElasticsearchReporter reporter;
+
+	@Setup
+	public void setUp() throws IOException {
+		server = new StubBulkServer();
+		final MetricRegistry registry = new MetricRegistry();
+		BenchmarkMetrics.registerMixed(registry, metrics);
+		reporter = ElasticsearchReporter.forRegistry(registry, "benchmark-")
+				.hostname("benchmark-host")
+				.build(server.endpoint());
+	}
+
+	@TearDown
+	public void tearDown() {
+		reporter.stop();
+		server.close();
+	}
+
+	@Benchmark
+	public void report() {
+		reporter.report();
+	}
+}
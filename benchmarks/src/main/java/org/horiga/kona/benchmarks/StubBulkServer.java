@@ -0,0 +1,60 @@
+package org.horiga.kona.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process '_bulk' endpoint which reads the request bodies and accepts every batch.
+ */
+final class StubBulkServer implements Closeable {
+	private static final byte[] RESPONSE = "{\"took\":1,\"errors\":false,\"items\":[]}"
+			.getBytes(StandardCharsets.UTF_8);
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	static {
+		// the response would otherwise wait for the delayed ACK of the client, 40ms per request.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	StubBulkServer() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.executor = Executors.newFixedThreadPool(4);
+		server.createContext("/_bulk", exchange -> {
+			final byte[] buffer = new byte[64 * 1024];
+			try (InputStream in = exchange.getRequestBody()) {
+				while (in.read(buffer) >= 0) {
+					// discard
+				}
+			}
+			exchange.sendResponseHeaders(200, RESPONSE.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(RESPONSE);
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return The "host:port" of the server.
+	 */
+	String endpoint() {
+		return "127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
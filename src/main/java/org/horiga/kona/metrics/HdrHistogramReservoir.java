@@ -0,0 +1,96 @@
+package org.horiga.kona.metrics;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Reservoir} recording into an HdrHistogram {@link Recorder}.
+ * <p>
+ * {@link #update(long)} is wait-free and does not allocate: values are clamped to
+ * {@code [0, highestTrackableValue]} so the histogram never resizes.
+ * <p>
+ * The values are read by a single reporter, through {@link #intervalSnapshot(Sampling)}: it swaps the
+ * active and the inactive histograms of the recorder, so each interval snapshot holds the values
+ * recorded since the previous one. Any other reader, such as the actuator '/metrics' endpoint, gets a
+ * read-only view of the last interval from {@link #getSnapshot()} and takes nothing from the reporter.
+ * Until the first interval snapshot, {@link #getSnapshot()} swaps the histograms itself. The histograms
+ * are recycled between intervals: a snapshot is overwritten by the next-but-one interval snapshot.
+ * <pre>
+ * registry.register("requests", new Timer(new HdrHistogramReservoir()));
+ * </pre>
+ */
+public class HdrHistogramReservoir implements Reservoir {
+	/**
+	 * One hour in nanoseconds, the unit of {@link com.codahale.metrics.Timer} updates.
+	 */
+	public static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos(1);
+	public static final int DEFAULT_SIGNIFICANT_VALUE_DIGITS = 2;
+
+	private static final ThreadLocal<Boolean> INTERVAL_READER = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	private final Recorder recorder;
+	private final long highestTrackableValue;
+	private Histogram recycled;
+	private Histogram last;
+	private boolean intervalRead;
+
+	public HdrHistogramReservoir() {
+		this(DEFAULT_HIGHEST_TRACKABLE_VALUE, DEFAULT_SIGNIFICANT_VALUE_DIGITS);
+	}
+
+	public HdrHistogramReservoir(long highestTrackableValue, int numberOfSignificantValueDigits) {
+		this.recorder = new Recorder(highestTrackableValue, numberOfSignificantValueDigits);
+		this.highestTrackableValue = highestTrackableValue;
+	}
+
+	/**
+	 * @return The number of values of the last snapshot.
+	 */
+	@Override
+	public synchronized int size() {
+		return null != last ? (int)Math.min(Integer.MAX_VALUE, last.getTotalCount()) : 0;
+	}
+
+	@Override
+	public void update(long value) {
+		recorder.recordValue(value < 0 ? 0 : Math.min(value, highestTrackableValue));
+	}
+
+	/**
+	 * @return The snapshot of the sampling. Backed by an {@link HdrHistogramReservoir}, it holds the values
+	 * recorded since the previous interval snapshot.
+	 */
+	public static Snapshot intervalSnapshot(Sampling sampling) {
+		INTERVAL_READER.set(Boolean.TRUE);
+		try {
+			return sampling.getSnapshot();
+		} finally {
+			INTERVAL_READER.set(Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * @return The last interval, or the values since the previous snapshot until a reporter reads the
+	 * intervals with {@link #intervalSnapshot(Sampling)}.
+	 */
+	@Override
+	public synchronized Snapshot getSnapshot() {
+		if (INTERVAL_READER.get()) {
+			intervalRead = true;
+			return new HdrSnapshot(nextInterval());
+		}
+		return new HdrSnapshot(intervalRead ? last : nextInterval());
+	}
+
+	private Histogram nextInterval() {
+		final Histogram interval = recorder.getIntervalHistogram(recycled);
+		recycled = last;
+		last = interval;
+		return interval;
+	}
+}
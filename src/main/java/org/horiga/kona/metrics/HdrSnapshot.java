@@ -0,0 +1,99 @@
+package org.horiga.kona.metrics;
+
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link Snapshot} backed by an HdrHistogram interval histogram.
+ * <p>
+ * The percentiles are read from the histogram buckets without copying or sorting the values, and the
+ * histogram can be encoded with {@link #encodeInto(ByteBuffer)} so that the intervals of many hosts
+ * can be merged later with {@link Histogram#add(org.HdrHistogram.AbstractHistogram)}.
+ */
+public class HdrSnapshot extends Snapshot {
+
+	private final Histogram histogram;
+
+	public HdrSnapshot(Histogram histogram) {
+		this.histogram = histogram;
+	}
+
+	@Override
+	public double getValue(double quantile) {
+		return histogram.getValueAtPercentile(quantile * 100.0d);
+	}
+
+	@Override
+	public long[] getValues() {
+		final long[] values = new long[size()];
+		int i = 0;
+		for (HistogramIterationValue value : histogram.recordedValues()) {
+			final long equivalent = histogram.highestEquivalentValue(value.getValueIteratedTo());
+			for (long n = 0; n < value.getCountAtValueIteratedTo() && i < values.length; n++) {
+				values[i++] = equivalent;
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public int size() {
+		return (int)Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+	}
+
+	@Override
+	public long getMax() {
+		return histogram.getMaxValue();
+	}
+
+	@Override
+	public double getMean() {
+		return histogram.getMean();
+	}
+
+	@Override
+	public long getMin() {
+		return histogram.getMinValue();
+	}
+
+	@Override
+	public double getStdDev() {
+		return histogram.getStdDeviation();
+	}
+
+	@Override
+	public void dump(OutputStream output) {
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+			for (long value : getValues()) {
+				out.printf("%d%n", value);
+			}
+		}
+	}
+
+	public Histogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * @return The capacity needed by {@link #encodeInto(ByteBuffer)}.
+	 */
+	public int getNeededByteBufferCapacity() {
+		return histogram.getNeededByteBufferCapacity();
+	}
+
+	/**
+	 * Writes the compressed encoding of the histogram.
+	 *
+	 * @return The number of bytes written.
+	 */
+	public int encodeInto(ByteBuffer buffer) {
+		return histogram.encodeIntoCompressedByteBuffer(buffer);
+	}
+}
@@ -0,0 +1,112 @@
+package org.horiga.kona.metrics;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Meter} whose rates are computed once per report interval instead of on every mark.
+ * <p>
+ * {@link #mark(long)} only adds to a striped count: it neither reads the clock nor ticks the moving
+ * averages, so a hot meter does not contend. {@link #getAndReset()} takes the events of the
+ * interval atomically and folds them into the 1, 5 and 15 minutes moving averages, weighted by the
+ * length of the interval. The rates therefore advance as the reporter resets the meter, and stay
+ * at zero when the meter is not reported by a kona reporter.
+ * <pre>
+ * registry.register("requests", new IntervalMeter());
+ * </pre>
+ */
+public class IntervalMeter extends Meter implements Resettable {
+	private static final double M1_SECONDS = 60.0;
+	private static final double M5_SECONDS = 5 * 60.0;
+	private static final double M15_SECONDS = 15 * 60.0;
+
+	private final StripedLong pending;
+	private final Clock clock;
+	private final long startTime;
+	private long lastReset;
+	private volatile long count;
+	private volatile double m1Rate;
+	private volatile double m5Rate;
+	private volatile double m15Rate;
+	private boolean initialized;
+
+	public IntervalMeter() {
+		this(Clock.defaultClock(), StripedLong.defaultStripes());
+	}
+
+	public IntervalMeter(Clock clock, int stripes) {
+		this.pending = new StripedLong(stripes);
+		this.clock = clock;
+		this.startTime = clock.getTick();
+		this.lastReset = startTime;
+	}
+
+	@Override
+	public void mark() {
+		pending.add(1);
+	}
+
+	@Override
+	public void mark(long n) {
+		pending.add(n);
+	}
+
+	/**
+	 * @return The number of events since the meter was created.
+	 */
+	@Override
+	public long getCount() {
+		return count + pending.sum();
+	}
+
+	@Override
+	public synchronized long getAndReset() {
+		final long delta = pending.sumThenReset();
+		final long now = clock.getTick();
+		final double seconds = (now - lastReset) / (double)TimeUnit.SECONDS.toNanos(1);
+		lastReset = now;
+		count += delta;
+		if (seconds <= 0) {
+			return delta;
+		}
+		final double rate = delta / seconds;
+		if (initialized) {
+			m1Rate = decay(m1Rate, rate, seconds, M1_SECONDS);
+			m5Rate = decay(m5Rate, rate, seconds, M5_SECONDS);
+			m15Rate = decay(m15Rate, rate, seconds, M15_SECONDS);
+		} else {
+			m1Rate = rate;
+			m5Rate = rate;
+			m15Rate = rate;
+			initialized = true;
+		}
+		return delta;
+	}
+
+	private static double decay(double average, double rate, double seconds, double window) {
+		return average + (1 - Math.exp(-seconds / window)) * (rate - average);
+	}
+
+	@Override
+	public double getMeanRate() {
+		final long elapsed = clock.getTick() - startTime;
+		return elapsed <= 0 ? 0.0 : getCount() / (double)elapsed * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	@Override
+	public double getOneMinuteRate() {
+		return m1Rate;
+	}
+
+	@Override
+	public double getFiveMinuteRate() {
+		return m5Rate;
+	}
+
+	@Override
+	public double getFifteenMinuteRate() {
+		return m15Rate;
+	}
+}
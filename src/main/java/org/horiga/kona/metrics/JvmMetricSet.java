@@ -0,0 +1,425 @@
+package org.horiga.kona.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The JVM gauges of kona, read from the MXBeans in one sweep which every gauge shares.
+ * <p>
+ * The gauges of the Dropwizard JVM metric sets call their MXBean each time they are read, dozens of
+ * calls per report cycle. Here the first gauge read after {@code ttl} refreshes a snapshot of every
+ * enabled MXBean, and the other gauges of the cycle read that snapshot. The rates, such as the
+ * allocation rate, are computed between two sweeps.
+ * <p>
+ * The memory, gc, threads and buffers gauges keep the names of the Dropwizard metric sets they
+ * replace: the pool and collector names keep their case, with their whitespace replaced by '-'.
+ * Only the {@code threads.deadlocks} stack traces are not reported, their number is.
+ * <pre>
+ * memory       memory.{heap,non-heap,total}.{init,used,max,committed}, memory.{heap,non-heap}.usage,
+ *              memory.pools.{pool}.{usage,used,max}
+ * gc           gc.{collector}.{count,time}, gc.total.{count,time}
+ * threads      threads.{count,daemon.count,peak,deadlock.count}, threads.{state}.count
+ * buffers      buffers.{direct,mapped}.{count,used,capacity}
+ * classes      classes.{loaded,unloaded}
+ * compilation  compilation.time                      the total JIT compilation time, in ms
+ * allocation   allocation.rate, allocation.total     the bytes allocated by the live threads
+ * safepoints   safepoints.{count,time,sync-time}     HotSpot only, in ms
+ * cpu          cpu.process.load, cpu.process.time,   the process CPU and the threads using the most
+ *              cpu.threads.top.{n}.{id,usage}        CPU since the previous sweep, in cores
+ * </pre>
+ * <pre>
+ * registry.register("jvm", new JvmMetricSet(JvmMetricSet.ALL, 5, 1, TimeUnit.SECONDS));
+ * </pre>
+ */
+@Slf4j
+public class JvmMetricSet implements MetricSet {
+	public static final Set<String> ALL = ImmutableSet.of("memory", "gc", "threads", "buffers", "classes",
+			"compilation", "allocation", "safepoints", "cpu");
+	public static final int DEFAULT_TOP_THREADS = 5;
+	public static final long DEFAULT_TTL_MILLIS = 1000L;
+
+	private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Set<String> categories;
+	private final int topThreads;
+	private final long ttlNanos;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+	private final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+	private final CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	private final Object hotspotRuntime;
+	private final Method[] safepointMethods;
+
+	private volatile Sweep sweep;
+
+	public JvmMetricSet(Set<String> categories) {
+		this(categories, DEFAULT_TOP_THREADS, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param categories The names of the gauge groups to enable, see {@link #ALL}.
+	 * @param topThreads The number of threads reported by their CPU usage.
+	 * @param ttl        How long a sweep is shared, shorter than the report interval.
+	 */
+	public JvmMetricSet(Set<String> categories, int topThreads, long ttl, TimeUnit unit) {
+		this.categories = categories;
+		this.topThreads = topThreads;
+		this.ttlNanos = unit.toNanos(ttl);
+		Object runtime = null;
+		Method[] methods = null;
+		if (categories.contains("safepoints")) {
+			try {
+				// sun.management is not exported as a platform MXBean, it is only reachable this way.
+				runtime = Class.forName("sun.management.ManagementFactoryHelper")
+						.getMethod("getHotspotRuntimeMBean").invoke(null);
+				final Class<?> type = Class.forName("sun.management.HotspotRuntimeMBean");
+				methods = new Method[]{type.getMethod("getSafepointCount"), type.getMethod("getTotalSafepointTime"),
+						type.getMethod("getSafepointSyncTime")};
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+				log.info("The safepoint metrics are not available on this JVM. {}", e.toString());
+				runtime = null;
+			}
+		}
+		this.hotspotRuntime = runtime;
+		this.safepointMethods = methods;
+	}
+
+	@Override
+	public Map<String, Metric> getMetrics() {
+		final Map<String, Metric> gauges = new HashMap<>();
+		if (categories.contains("memory")) {
+			memoryGauges(gauges, "memory.heap", s -> s.heap);
+			memoryGauges(gauges, "memory.non-heap", s -> s.nonHeap);
+			gauge(gauges, "memory.total.init", s -> s.heap.getInit() + s.nonHeap.getInit());
+			gauge(gauges, "memory.total.used", s -> s.heap.getUsed() + s.nonHeap.getUsed());
+			gauge(gauges, "memory.total.max", s -> s.heap.getMax() + s.nonHeap.getMax());
+			gauge(gauges, "memory.total.committed", s -> s.heap.getCommitted() + s.nonHeap.getCommitted());
+			for (int i = 0; i < memoryPools.size(); i++) {
+				final int pool = i;
+				final String name = MetricRegistry.name("memory.pools", metricName(memoryPools.get(i).getName()));
+				doubleGauge(gauges, name + ".usage", s -> usage(s.pools[pool]));
+				gauge(gauges, name + ".used", s -> s.pools[pool].getUsed());
+				gauge(gauges, name + ".max", s -> s.pools[pool].getMax());
+			}
+		}
+		if (categories.contains("gc")) {
+			for (int i = 0; i < collectors.size(); i++) {
+				final int collector = i;
+				final String name = MetricRegistry.name("gc", metricName(collectors.get(i).getName()));
+				gauge(gauges, name + ".count", s -> s.gcCounts[collector]);
+				gauge(gauges, name + ".time", s -> s.gcTimes[collector]);
+			}
+			gauge(gauges, "gc.total.count", s -> s.gcCount);
+			gauge(gauges, "gc.total.time", s -> s.gcTime);
+		}
+		if (categories.contains("threads")) {
+			gauge(gauges, "threads.count", s -> s.threadCount);
+			gauge(gauges, "threads.daemon.count", s -> s.daemonThreadCount);
+			gauge(gauges, "threads.peak", s -> s.peakThreadCount);
+			gauge(gauges, "threads.deadlock.count", s -> s.deadlockedThreadCount);
+			for (Thread.State state : Thread.State.values()) {
+				gauge(gauges, "threads." + state.name().toLowerCase(Locale.ROOT) + ".count",
+						s -> s.threadStates[state.ordinal()]);
+			}
+		}
+		if (categories.contains("buffers")) {
+			for (int i = 0; i < bufferPools.size(); i++) {
+				final int pool = i;
+				final String name = MetricRegistry.name("buffers", metricName(bufferPools.get(i).getName()));
+				gauge(gauges, name + ".count", s -> s.bufferCounts[pool]);
+				gauge(gauges, name + ".used", s -> s.bufferUsed[pool]);
+				gauge(gauges, name + ".capacity", s -> s.bufferCapacities[pool]);
+			}
+		}
+		if (categories.contains("classes")) {
+			gauge(gauges, "classes.loaded", s -> s.classesLoaded);
+			gauge(gauges, "classes.unloaded", s -> s.classesUnloaded);
+		}
+		if (categories.contains("compilation") && null != compilation && compilation.isCompilationTimeMonitoringSupported()) {
+			gauge(gauges, "compilation.time", s -> s.compilationTime);
+		}
+		if (categories.contains("allocation") && threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported()) {
+			((com.sun.management.ThreadMXBean)threads).setThreadAllocatedMemoryEnabled(true);
+			gauge(gauges, "allocation.total", s -> s.allocatedBytes);
+			doubleGauge(gauges, "allocation.rate", s -> s.allocationRate);
+		}
+		if (null != hotspotRuntime) {
+			gauge(gauges, "safepoints.count", s -> s.safepointCount);
+			gauge(gauges, "safepoints.time", s -> s.safepointTime);
+			gauge(gauges, "safepoints.sync-time", s -> s.safepointSyncTime);
+		}
+		if (categories.contains("cpu")) {
+			if (os instanceof com.sun.management.OperatingSystemMXBean) {
+				doubleGauge(gauges, "cpu.process.load", s -> s.processCpuLoad);
+				gauge(gauges, "cpu.process.time", s -> s.processCpuTime);
+			}
+			if (threads.isThreadCpuTimeSupported()) {
+				threads.setThreadCpuTimeEnabled(true);
+				for (int i = 0; i < topThreads; i++) {
+					final int rank = i;
+					gauge(gauges, "cpu.threads.top." + (i + 1) + ".id", s -> s.topThreadIds[rank]);
+					doubleGauge(gauges, "cpu.threads.top." + (i + 1) + ".usage", s -> s.topThreadUsages[rank]);
+				}
+			}
+		}
+		return Collections.unmodifiableMap(gauges);
+	}
+
+	private void gauge(Map<String, Metric> gauges, String name, ToLongFunction<Sweep> value) {
+		gauges.put(name, (Gauge<Long>)() -> value.applyAsLong(sweep()));
+	}
+
+	private void doubleGauge(Map<String, Metric> gauges, String name, ToDoubleFunction<Sweep> value) {
+		gauges.put(name, (Gauge<Double>)() -> value.applyAsDouble(sweep()));
+	}
+
+	private void memoryGauges(Map<String, Metric> gauges, String name, Function<Sweep, MemoryUsage> usage) {
+		gauge(gauges, name + ".init", s -> usage.apply(s).getInit());
+		gauge(gauges, name + ".used", s -> usage.apply(s).getUsed());
+		gauge(gauges, name + ".max", s -> usage.apply(s).getMax());
+		gauge(gauges, name + ".committed", s -> usage.apply(s).getCommitted());
+		doubleGauge(gauges, name + ".usage", s -> usage(usage.apply(s)));
+	}
+
+	/**
+	 * @return The used share of the maximum, or of the committed memory when there is no maximum.
+	 */
+	private static double usage(MemoryUsage usage) {
+		final long max = usage.getMax() < 0 ? usage.getCommitted() : usage.getMax();
+		return max > 0 ? usage.getUsed() / (double)max : 0d;
+	}
+
+	/**
+	 * @return The MXBean name with its whitespace replaced by '-', like the Dropwizard JVM metric sets.
+	 */
+	private static String metricName(String mxBeanName) {
+		return mxBeanName.trim().replaceAll("\\s+", "-");
+	}
+
+	/**
+	 * @return The current sweep, taking a new one once it is older than the ttl.
+	 */
+	private Sweep sweep() {
+		final Sweep current = sweep;
+		final long now = System.nanoTime();
+		if (null != current && now - current.nanoTime < ttlNanos) {
+			return current;
+		}
+		synchronized (this) {
+			if (sweep != current) {
+				return sweep;
+			}
+			final Sweep next = new Sweep(now);
+			next.read(current);
+			sweep = next;
+			return next;
+		}
+	}
+
+	/**
+	 * The values of every enabled MXBean at a point in time.
+	 */
+	private final class Sweep {
+		private final long nanoTime;
+		private MemoryUsage heap;
+		private MemoryUsage nonHeap;
+		private MemoryUsage[] pools;
+		private long[] gcCounts;
+		private long[] gcTimes;
+		private long gcCount;
+		private long gcTime;
+		private long threadCount;
+		private long daemonThreadCount;
+		private long peakThreadCount;
+		private long deadlockedThreadCount;
+		private final long[] threadStates = new long[Thread.State.values().length];
+		private long[] bufferCounts;
+		private long[] bufferUsed;
+		private long[] bufferCapacities;
+		private long classesLoaded;
+		private long classesUnloaded;
+		private long compilationTime;
+		private long allocatedBytes;
+		private double allocationRate;
+		private long safepointCount;
+		private long safepointTime;
+		private long safepointSyncTime;
+		private double processCpuLoad;
+		private long processCpuTime;
+		private long[] threadIds = new long[0];
+		private long[] threadCpuTimes = new long[0];
+		private final long[] topThreadIds = new long[topThreads];
+		private final double[] topThreadUsages = new double[topThreads];
+
+		Sweep(long nanoTime) {
+			this.nanoTime = nanoTime;
+		}
+
+		void read(Sweep previous) {
+			if (categories.contains("memory")) {
+				heap = memory.getHeapMemoryUsage();
+				nonHeap = memory.getNonHeapMemoryUsage();
+				pools = new MemoryUsage[memoryPools.size()];
+				for (int i = 0; i < pools.length; i++) {
+					pools[i] = memoryPools.get(i).getUsage();
+				}
+			}
+			if (categories.contains("gc")) {
+				gcCounts = new long[collectors.size()];
+				gcTimes = new long[collectors.size()];
+				for (int i = 0; i < gcCounts.length; i++) {
+					gcCounts[i] = Math.max(0, collectors.get(i).getCollectionCount());
+					gcTimes[i] = Math.max(0, collectors.get(i).getCollectionTime());
+					gcCount += gcCounts[i];
+					gcTime += gcTimes[i];
+				}
+			}
+			final boolean threadIdsNeeded = categories.contains("threads") || categories.contains("allocation")
+					|| categories.contains("cpu");
+			if (threadIdsNeeded) {
+				threadIds = threads.getAllThreadIds();
+				// sorted, so that the CPU times of two sweeps are matched in a single pass.
+				Arrays.sort(threadIds);
+			}
+			if (categories.contains("threads")) {
+				threadCount = threads.getThreadCount();
+				daemonThreadCount = threads.getDaemonThreadCount();
+				peakThreadCount = threads.getPeakThreadCount();
+				final long[] deadlocked = threads.findDeadlockedThreads();
+				deadlockedThreadCount = null != deadlocked ? deadlocked.length : 0;
+				// no stack trace, the thread states only.
+				for (ThreadInfo info : threads.getThreadInfo(threadIds, 0)) {
+					if (null != info) {
+						threadStates[info.getThreadState().ordinal()]++;
+					}
+				}
+			}
+			if (categories.contains("buffers")) {
+				bufferCounts = new long[bufferPools.size()];
+				bufferUsed = new long[bufferPools.size()];
+				bufferCapacities = new long[bufferPools.size()];
+				for (int i = 0; i < bufferCounts.length; i++) {
+					bufferCounts[i] = bufferPools.get(i).getCount();
+					bufferUsed[i] = bufferPools.get(i).getMemoryUsed();
+					bufferCapacities[i] = bufferPools.get(i).getTotalCapacity();
+				}
+			}
+			if (categories.contains("classes")) {
+				classesLoaded = classLoading.getLoadedClassCount();
+				classesUnloaded = classLoading.getUnloadedClassCount();
+			}
+			if (categories.contains("compilation") && null != compilation
+					&& compilation.isCompilationTimeMonitoringSupported()) {
+				compilationTime = compilation.getTotalCompilationTime();
+			}
+			if (categories.contains("allocation") && threads instanceof com.sun.management.ThreadMXBean) {
+				readAllocation(previous);
+			}
+			if (null != hotspotRuntime) {
+				readSafepoints();
+			}
+			if (categories.contains("cpu")) {
+				if (os instanceof com.sun.management.OperatingSystemMXBean) {
+					processCpuLoad = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuLoad();
+					processCpuTime = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+				}
+				if (threads.isThreadCpuTimeSupported()) {
+					readTopThreads(previous);
+				}
+			}
+		}
+
+		private void readAllocation(Sweep previous) {
+			final long[] allocated = ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threadIds);
+			for (long bytes : allocated) {
+				if (bytes > 0) {
+					allocatedBytes += bytes;
+				}
+			}
+			if (null != previous) {
+				// the bytes of the threads which died in between are lost, the rate never goes negative.
+				final double seconds = (nanoTime - previous.nanoTime) / (double)TimeUnit.SECONDS.toNanos(1);
+				allocationRate = Math.max(0, allocatedBytes - previous.allocatedBytes) / seconds;
+			}
+		}
+
+		private void readSafepoints() {
+			try {
+				safepointCount = ((Number)safepointMethods[0].invoke(hotspotRuntime)).longValue();
+				safepointTime = ((Number)safepointMethods[1].invoke(hotspotRuntime)).longValue();
+				safepointSyncTime = ((Number)safepointMethods[2].invoke(hotspotRuntime)).longValue();
+			} catch (ReflectiveOperationException e) {
+				log.debug("Fail! Reading the safepoint metrics. {}", e.toString());
+			}
+		}
+
+		private void readTopThreads(Sweep previous) {
+			threadCpuTimes = threads instanceof com.sun.management.ThreadMXBean
+					? ((com.sun.management.ThreadMXBean)threads).getThreadCpuTime(threadIds)
+					: Arrays.stream(threadIds).map(threads::getThreadCpuTime).toArray();
+			if (null == previous) {
+				return;
+			}
+			final double elapsed = nanoTime - previous.nanoTime;
+			Arrays.fill(topThreadIds, -1L);
+			final int previousLength = Math.min(previous.threadIds.length, previous.threadCpuTimes.length);
+			int j = 0;
+			for (int i = 0; i < threadIds.length; i++) {
+				while (j < previousLength && previous.threadIds[j] < threadIds[i]) {
+					j++;
+				}
+				// 0 for a new thread.
+				final long before = j < previousLength && previous.threadIds[j] == threadIds[i]
+						? previous.threadCpuTimes[j] : 0L;
+				if (threadCpuTimes[i] < 0 || before < 0) {
+					continue;
+				}
+				final double usage = (threadCpuTimes[i] - before) / elapsed;
+				// insertion into the few top slots.
+				for (int rank = 0; rank < topThreads; rank++) {
+					if (topThreadIds[rank] < 0 || usage > topThreadUsages[rank]) {
+						System.arraycopy(topThreadIds, rank, topThreadIds, rank + 1, topThreads - rank - 1);
+						System.arraycopy(topThreadUsages, rank, topThreadUsages, rank + 1, topThreads - rank - 1);
+						topThreadIds[rank] = threadIds[i];
+						topThreadUsages[rank] = usage;
+						break;
+					}
+				}
+			}
+		}
+	}
+}
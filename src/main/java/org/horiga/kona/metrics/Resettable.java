@@ -0,0 +1,15 @@
+package org.horiga.kona.metrics;
+
+/**
+ * A metric counting the events of an interval, read and reset at once by the reporter.
+ */
+public interface Resettable {
+
+	/**
+	 * Atomically reads and resets the count. An event recorded concurrently is counted either by this
+	 * call or by the next one, never twice and never lost.
+	 *
+	 * @return The number of events since the previous reset.
+	 */
+	long getAndReset();
+}
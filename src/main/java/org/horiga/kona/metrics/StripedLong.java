@@ -0,0 +1,64 @@
+package org.horiga.kona.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum striped over cache line padded cells, picked by the id of the updating thread.
+ * <p>
+ * Unlike {@link java.util.concurrent.atomic.LongAdder#sumThenReset()}, {@link #sumThenReset()} swaps
+ * every cell with zero atomically, so an update is counted exactly once: either in this sum or in
+ * the next one.
+ */
+class StripedLong {
+	/**
+	 * One cell per 64 bytes cache line.
+	 */
+	private static final int PADDING = 8;
+	private static final int MAX_STRIPES = 64;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	StripedLong(int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("stripes must be positive: " + stripes);
+		}
+		final int size = Integer.highestOneBit(Math.min(stripes, MAX_STRIPES) * 2 - 1);
+		this.cells = new AtomicLongArray(size * PADDING);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @return The number of stripes for this machine: the number of processors rounded up to a power
+	 * of two, up to 64.
+	 */
+	static int defaultStripes() {
+		return Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors());
+	}
+
+	void add(long x) {
+		cells.getAndAdd(index(), x);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+	long sumThenReset() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.getAndSet(i, 0);
+		}
+		return sum;
+	}
+
+	private int index() {
+		// fibonacci hashing spreads the sequential thread ids over the stripes.
+		final long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int)(h >>> 32) & mask) * PADDING;
+	}
+}
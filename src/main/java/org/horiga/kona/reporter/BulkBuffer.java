@@ -0,0 +1,133 @@
+package org.horiga.kona.reporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable byte buffer holding one '_bulk' request body.
+ * <p>
+ * Unlike {@link java.io.ByteArrayOutputStream} it is not synchronized, exposes its backing array
+ * without copying and keeps its capacity on {@link #reset()}, so a pooled instance stops allocating
+ * once it has grown to the size of a bulk chunk.
+ */
+public class BulkBuffer extends OutputStream {
+
+	private byte[] buf;
+	private int count;
+	private int documents;
+	private int documentsEnd;
+
+	public BulkBuffer(int initialCapacity) {
+		this.buf = new byte[initialCapacity];
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Appends the next {@code len} bytes of {@code src}.
+	 */
+	public void write(ByteBuffer src, int len) {
+		ensureCapacity(count + len);
+		src.get(buf, count, len);
+		count += len;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, count);
+	}
+
+	public void writeTo(ByteBuffer dst) {
+		dst.put(buf, 0, count);
+	}
+
+	public void documentWritten() {
+		documents++;
+		documentsEnd = count;
+	}
+
+	public void documentsWritten(int documents) {
+		this.documents += documents;
+		documentsEnd = count;
+	}
+
+	/**
+	 * Drops the bytes written since the last complete document.
+	 */
+	public void discardPartialDocument() {
+		count = documentsEnd;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int documents() {
+		return documents;
+	}
+
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * Keeps only the given documents, moving them to the front of the buffer in place. A document is
+	 * its action line and its source line.
+	 *
+	 * @param positions The positions of the documents to keep, in ascending order.
+	 * @param length    The number of positions.
+	 */
+	public void retain(int[] positions, int length) {
+		int document = 0;
+		int start = 0;
+		int retained = 0;
+		int kept = 0;
+		while (kept < length && start < count) {
+			final int end = documentEnd(start);
+			if (document == positions[kept]) {
+				System.arraycopy(buf, start, buf, retained, end - start);
+				retained += end - start;
+				kept++;
+			}
+			document++;
+			start = end;
+		}
+		count = retained;
+		documents = kept;
+		documentsEnd = retained;
+	}
+
+	private int documentEnd(int start) {
+		int lines = 0;
+		for (int i = start; i < count; i++) {
+			if (buf[i] == '\n' && ++lines == 2) {
+				return i + 1;
+			}
+		}
+		return count;
+	}
+
+	public void reset() {
+		count = 0;
+		documents = 0;
+		documentsEnd = 0;
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, minCapacity));
+		}
+	}
+}
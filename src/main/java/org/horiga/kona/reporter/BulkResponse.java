@@ -0,0 +1,209 @@
+package org.horiga.kona.reporter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The outcome of a '_bulk' request: its HTTP status and the items Elasticsearch failed.
+ * <p>
+ * A '_bulk' request is answered by 200 even when some of its items failed, with {@code "errors":true}
+ * and the status and error of each item:
+ * <pre>
+ * {"took":3,"errors":true,"items":[{"index":{"_index":"metrics-2016.01.01","status":201}},
+ *   {"index":{"_index":"metrics-2016.01.01","status":429,
+ *     "error":{"type":"es_rejected_execution_exception","reason":"rejected execution of ..."}}}]}
+ * </pre>
+ * The response is read token by token, and only the position, status and error type of the failed
+ * items are kept. The items are not read at all when {@code "errors":false} comes before them.
+ */
+public class BulkResponse {
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final int[] NO_ITEMS = new int[0];
+
+	private final int status;
+	private boolean errors;
+	private int items;
+	private int failures;
+	private int[] failedItems = NO_ITEMS;
+	private int[] failedStatuses = NO_ITEMS;
+	private String[] failureReasons = new String[0];
+	private Map<String, Integer> failureCounts = Collections.emptyMap();
+
+	private BulkResponse(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return A response whose body was not parsed.
+	 */
+	public static BulkResponse of(int status) {
+		return new BulkResponse(status);
+	}
+
+	/**
+	 * Reads the failed items out of a '_bulk' response body. The stream is not closed.
+	 */
+	public static BulkResponse parse(int status, InputStream body) throws IOException {
+		final BulkResponse response = new BulkResponse(status);
+		try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+			parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return response;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken value = parser.nextToken();
+				if ("errors".equals(field)) {
+					response.errors = value == JsonToken.VALUE_TRUE;
+					if (!response.errors) {
+						break;
+					}
+				} else if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+					response.parseItems(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return response;
+	}
+
+	private void parseItems(JsonParser parser) throws IOException {
+		final Map<String, String> reasons = new HashMap<>();
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			// {"index":{...}}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				parser.nextToken();
+				parseItem(parser, reasons);
+			}
+			items++;
+		}
+	}
+
+	private void parseItem(JsonParser parser, Map<String, String> reasons) throws IOException {
+		int itemStatus = 0;
+		String reason = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = parser.getCurrentName();
+			final JsonToken value = parser.nextToken();
+			if ("status".equals(field)) {
+				itemStatus = parser.getIntValue();
+			} else if ("error".equals(field)) {
+				reason = parseError(parser, value);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (null != reason || itemStatus >= 300) {
+			if (null == reason) {
+				reason = "status_" + itemStatus;
+			}
+			// the items of a batch mostly fail for the same reason, keep one string of each.
+			final String existing = reasons.putIfAbsent(reason, reason);
+			addFailure(items, itemStatus, null != existing ? existing : reason);
+		}
+	}
+
+	/**
+	 * @return The {@code type} of the error, or the exception name of an Elasticsearch 1.x error
+	 * message such as {@code "EsRejectedExecutionException[rejected execution ...]"}.
+	 */
+	private static String parseError(JsonParser parser, JsonToken value) throws IOException {
+		if (value == JsonToken.VALUE_STRING) {
+			final String message = parser.getText();
+			final int bracket = message.indexOf('[');
+			return bracket > 0 ? message.substring(0, bracket) : message;
+		}
+		if (value != JsonToken.START_OBJECT) {
+			return "unknown";
+		}
+		String type = "unknown";
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("type".equals(field)) {
+				type = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return type;
+	}
+
+	private void addFailure(int item, int itemStatus, String reason) {
+		if (failures == failedItems.length) {
+			final int capacity = Math.max(16, failures << 1);
+			failedItems = Arrays.copyOf(failedItems, capacity);
+			failedStatuses = Arrays.copyOf(failedStatuses, capacity);
+			failureReasons = Arrays.copyOf(failureReasons, capacity);
+		}
+		failedItems[failures] = item;
+		failedStatuses[failures] = itemStatus;
+		failureReasons[failures] = reason;
+		failures++;
+		if (failureCounts.isEmpty()) {
+			failureCounts = new HashMap<>();
+		}
+		failureCounts.merge(reason, 1, Integer::sum);
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return {@code true} when the response reported failed items.
+	 */
+	public boolean hasErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return The number of items in the response, zero when they were not read.
+	 */
+	public int getItems() {
+		return items;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return The position of the {@code i}th failed item in the request, in ascending order.
+	 */
+	public int getFailedItem(int i) {
+		return failedItems[i];
+	}
+
+	public int getFailedStatus(int i) {
+		return failedStatuses[i];
+	}
+
+	public String getFailureReason(int i) {
+		return failureReasons[i];
+	}
+
+	/**
+	 * @return {@code true} when the {@code i}th failed item was rejected by a busy or unavailable
+	 * node (429 or 5xx) and may succeed when it is sent again.
+	 */
+	public boolean isRetryable(int i) {
+		return failedStatuses[i] == 429 || failedStatuses[i] >= 500;
+	}
+
+	/**
+	 * @return The number of failed items by error type.
+	 */
+	public Map<String, Integer> getFailureCounts() {
+		return failureCounts;
+	}
+}
@@ -0,0 +1,240 @@
+package org.horiga.kona.reporter;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands encoded '_bulk' batches from the reporter thread to dedicated sender threads through a
+ * bounded queue.
+ * <p>
+ * The {@link BulkBuffer}s are pooled: one is being encoded, up to {@code queueCapacity} are queued
+ * and one per sender thread is in flight, so a full queue is resolved by the
+ * {@link BackpressurePolicy} instead of by allocating more buffers.
+ */
+@Slf4j
+public class BulkSender implements Closeable {
+
+	public enum BackpressurePolicy {
+		/**
+		 * Drops the oldest queued batch to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drops the new batch.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Waits for room in the queue up to the deadline, then drops the new batch.
+		 */
+		BLOCK
+	}
+
+	@FunctionalInterface
+	public interface BulkHandler {
+		void handle(BulkBuffer bulk) throws IOException;
+	}
+
+	private final String name;
+	private final BlockingQueue<BulkBuffer> buffers;
+	private final BlockingQueue<BulkBuffer> queue;
+	private final BackpressurePolicy policy;
+	private final long blockTimeoutMillis;
+	private final int initialBufferSize;
+	private final BulkHandler handler;
+	private final List<Thread> senders;
+
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final Object idle = new Object();
+	private int pending;
+
+	/**
+	 * @param blockTimeoutMillis The deadline of {@link BackpressurePolicy#BLOCK}, or a negative
+	 *                           value to wait without a deadline.
+	 */
+	public BulkSender(String name, int senderThreads, int queueCapacity, BackpressurePolicy policy,
+					  long blockTimeoutMillis, int initialBufferSize, BulkHandler handler) {
+		this.name = name;
+		this.buffers = new ArrayBlockingQueue<>(queueCapacity + senderThreads + 1);
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.policy = policy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+		this.initialBufferSize = initialBufferSize;
+		this.handler = handler;
+		this.senders = new ArrayList<>(senderThreads);
+		for (int i = 0; i < senderThreads; i++) {
+			Thread sender = new Thread(this::run, name + "-sender-" + i);
+			sender.setDaemon(true);
+			sender.start();
+			senders.add(sender);
+		}
+	}
+
+	/**
+	 * @return An empty buffer to encode the next batch into.
+	 */
+	public BulkBuffer acquire() {
+		BulkBuffer buffer = buffers.poll();
+		return null != buffer ? buffer : new BulkBuffer(initialBufferSize);
+	}
+
+	/**
+	 * Returns a buffer that was acquired but not submitted.
+	 */
+	public void recycle(BulkBuffer buffer) {
+		buffer.reset();
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * Queues an encoded batch, applying the backpressure policy when the queue is full.
+	 */
+	public void submit(BulkBuffer bulk) throws InterruptedIOException {
+		synchronized (idle) {
+			pending++;
+		}
+		try {
+			switch (policy) {
+				case DROP_OLDEST:
+					while (!queue.offer(bulk)) {
+						BulkBuffer oldest = queue.poll();
+						if (null != oldest) {
+							drop(oldest);
+						}
+					}
+					break;
+				case DROP_NEWEST:
+					if (!queue.offer(bulk)) {
+						drop(bulk);
+						return;
+					}
+					break;
+				default:
+					if (blockTimeoutMillis < 0) {
+						queue.put(bulk);
+					} else if (!queue.offer(bulk, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+						drop(bulk);
+						return;
+					}
+			}
+			queued.increment();
+		} catch (InterruptedException e) {
+			drop(bulk);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing a bulk batch");
+		}
+	}
+
+	/**
+	 * Waits until every submitted batch has been sent or dropped.
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idle) {
+			while (pending > 0) {
+				idle.wait();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every submitted batch has been sent or dropped.
+	 *
+	 * @return {@code false} when the timeout elapsed first.
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (idle) {
+			while (pending > 0) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					return false;
+				}
+				idle.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Gives the queued batches one second to be sent, then stops the sender threads.
+	 */
+	@Override
+	public void close() {
+		try {
+			if (!awaitIdle(1, TimeUnit.SECONDS)) {
+				log.warn("The bulk sender was closed with {} batches in the queue.", queue.size());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		senders.forEach(Thread::interrupt);
+	}
+
+	private void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			final BulkBuffer bulk;
+			try {
+				bulk = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				handler.handle(bulk);
+				sent.increment();
+			} catch (Exception e) {
+				failed.increment();
+				log.warn("Fail! The metric reporting of '{}'.", name, e);
+			} finally {
+				release(bulk);
+			}
+		}
+	}
+
+	private void drop(BulkBuffer bulk) {
+		dropped.increment();
+		log.warn("A bulk batch was dropped by the '{}' policy. documents={}, bytes={}",
+				policy, bulk.documents(), bulk.size());
+		release(bulk);
+	}
+
+	private void release(BulkBuffer bulk) {
+		bulk.reset();
+		buffers.offer(bulk);
+		synchronized (idle) {
+			if (--pending == 0) {
+				idle.notifyAll();
+			}
+		}
+	}
+
+	public long getQueuedBatches() {
+		return queued.sum();
+	}
+
+	public long getSentBatches() {
+		return sent.sum();
+	}
+
+	public long getFailedBatches() {
+		return failed.sum();
+	}
+
+	public long getDroppedBatches() {
+		return dropped.sum();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+}
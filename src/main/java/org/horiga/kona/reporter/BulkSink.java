@@ -0,0 +1,23 @@
+package org.horiga.kona.reporter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination of the encoded '_bulk' batches besides Elasticsearch.
+ * <p>
+ * A batch is NDJSON: an action line and a source line per document. Each sink has its own
+ * {@link BulkSender} queue and thread, and gets its own copy of every batch, so a slow or failing sink
+ * neither delays the other sinks nor sees their changes to a batch.
+ */
+public interface BulkSink extends Closeable {
+
+	/**
+	 * Writes a batch, called on the thread of the sink. The buffer is reused after the call returns.
+	 */
+	void write(BulkBuffer bulk) throws IOException;
+
+	@Override
+	default void close() throws IOException {
+	}
+}
@@ -0,0 +1,296 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Local spool of the '_bulk' batches which could not be delivered to any Elasticsearch node.
+ * <p>
+ * Batches are appended as they were encoded, so a replayed batch keeps its original index name and
+ * {@code @timestamp}. The spool is a directory of fixed size, memory-mapped segment files:
+ * <pre>
+ * segment := [int readPosition][int reserved] record* [int 0]
+ * record  := [int length][int documents][length bytes of NDJSON]
+ * </pre>
+ * The length of a record is written after its payload, so a record is either complete or invisible
+ * after a crash, and the read position is kept in the segment itself, so a restarted process resumes
+ * the replay where it stopped. Writes go to the page cache and are not forced to the disk.
+ * When the spool grows over {@code maxBytes} the oldest segment is evicted.
+ */
+@Slf4j
+public class BulkSpool {
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".spool";
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private final File directory;
+	private final int segmentSize;
+	private final long maxBytes;
+	private final Deque<Segment> segments;
+
+	private final LongAdder spooled = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	public BulkSpool(File directory, int segmentSize, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the spool directory: " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxBytes = Math.max(maxBytes, segmentSize);
+		this.segments = new ArrayDeque<>();
+
+		final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (null != files) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.length() < HEADER_SIZE) {
+					file.delete();
+					continue;
+				}
+				Segment segment = Segment.open(file);
+				if (segment.isFullyRead()) {
+					segment.delete();
+				} else {
+					segments.addLast(segment);
+				}
+			}
+		}
+		if (!segments.isEmpty()) {
+			log.info("The spool '{}' has {} segments to replay.", directory, segments.size());
+		}
+	}
+
+	/**
+	 * @return {@code false} when the batch is larger than a segment and cannot be spooled.
+	 */
+	public synchronized boolean append(BulkBuffer bulk) throws IOException {
+		if (RECORD_HEADER_SIZE + bulk.size() > segmentSize - HEADER_SIZE - 4) {
+			log.warn("A bulk batch of {} bytes is too large for the spool segments of {} bytes.",
+					bulk.size(), segmentSize);
+			return false;
+		}
+		Segment tail = segments.peekLast();
+		if (null == tail || !tail.append(bulk)) {
+			final long sequence = null == tail ? 0 : tail.sequence + 1;
+			tail = Segment.create(new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX)),
+					sequence, segmentSize);
+			segments.addLast(tail);
+			tail.append(bulk);
+			dropReadHead();
+			evict();
+		}
+		spooled.increment();
+		return true;
+	}
+
+	/**
+	 * Sends the spooled batches in order, one at a time, as long as {@code ready} holds and the rate
+	 * limiter allows. A batch stays in the spool until it has been sent. When the handler fails after
+	 * keeping only some documents of the batch in the buffer, such as the items Elasticsearch rejected,
+	 * the batch is replaced by these documents at the end of the spool, so the accepted ones are not
+	 * sent twice.
+	 *
+	 * @return The number of replayed batches.
+	 */
+	public int replay(BulkBuffer buffer, BulkSender.BulkHandler handler, BooleanSupplier ready,
+					  RateLimiter rateLimiter) {
+		int count = 0;
+		while (ready.getAsBoolean()) {
+			buffer.reset();
+			final Segment segment;
+			final int documents;
+			synchronized (this) {
+				dropReadHead();
+				segment = segments.peekFirst();
+				if (null == segment || !segment.read(buffer)) {
+					return count;
+				}
+				documents = buffer.documents();
+			}
+			rateLimiter.acquire();
+			try {
+				handler.handle(buffer);
+			} catch (IOException e) {
+				log.warn("Fail! The replay of the spooled metrics. {}", e.toString());
+				if (buffer.documents() < documents) {
+					respool(segment, buffer);
+				}
+				return count;
+			}
+			synchronized (this) {
+				remove(segment);
+			}
+			replayed.increment();
+			count++;
+		}
+		return count;
+	}
+
+	private synchronized void respool(Segment segment, BulkBuffer remainder) {
+		try {
+			if (append(remainder)) {
+				spooled.decrement();
+				remove(segment);
+			}
+		} catch (IOException e) {
+			log.warn("Fail! Spooling the rest of a replayed batch. {}", e.toString());
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return segments.isEmpty() || (segments.size() == 1 && segments.peekFirst().isFullyRead());
+	}
+
+	private void remove(Segment segment) {
+		final Segment head = segments.peekFirst();
+		if (head != segment) {
+			// evicted while it was being replayed
+			return;
+		}
+		head.commitRead();
+		dropReadHead();
+	}
+
+	/**
+	 * Deletes the fully read segments at the head, but the last one which is still written to.
+	 */
+	private void dropReadHead() {
+		while (segments.size() > 1 && segments.peekFirst().isFullyRead()) {
+			segments.removeFirst().delete();
+		}
+	}
+
+	private void evict() {
+		while ((long)segments.size() * segmentSize > maxBytes && segments.size() > 1) {
+			final Segment oldest = segments.removeFirst();
+			final int records = oldest.unreadRecords();
+			evicted.add(records);
+			log.warn("The spool is full, {} spooled batches were evicted.", records);
+			oldest.delete();
+		}
+	}
+
+	public long getSpooledBatches() {
+		return spooled.sum();
+	}
+
+	public long getReplayedBatches() {
+		return replayed.sum();
+	}
+
+	public long getEvictedBatches() {
+		return evicted.sum();
+	}
+
+	private static final class Segment {
+		private final File file;
+		private final long sequence;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+		private int readPosition;
+
+		private Segment(File file, long sequence, MappedByteBuffer buffer) {
+			this.file = file;
+			this.sequence = sequence;
+			this.buffer = buffer;
+		}
+
+		static Segment create(File file, long sequence, int size) throws IOException {
+			final Segment segment = new Segment(file, sequence, map(file, size));
+			segment.readPosition = HEADER_SIZE;
+			segment.writePosition = HEADER_SIZE;
+			segment.buffer.putInt(0, HEADER_SIZE);
+			return segment;
+		}
+
+		static Segment open(File file) throws IOException {
+			final String name = file.getName();
+			final Segment segment = new Segment(file,
+					Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+					map(file, (int)file.length()));
+			segment.readPosition = Math.max(HEADER_SIZE, segment.buffer.getInt(0));
+			int position = HEADER_SIZE;
+			int length;
+			while (position + RECORD_HEADER_SIZE <= segment.buffer.capacity()
+					&& (length = segment.buffer.getInt(position)) > 0
+					&& position + RECORD_HEADER_SIZE + length <= segment.buffer.capacity()) {
+				position += RECORD_HEADER_SIZE + length;
+			}
+			segment.writePosition = position;
+			return segment;
+		}
+
+		private static MappedByteBuffer map(File file, int size) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				 FileChannel channel = raf.getChannel()) {
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		boolean append(BulkBuffer bulk) {
+			// keep room for the terminating zero length.
+			if (writePosition + RECORD_HEADER_SIZE + bulk.size() + 4 > buffer.capacity()) {
+				return false;
+			}
+			final ByteBuffer dst = buffer.duplicate();
+			dst.position(writePosition + RECORD_HEADER_SIZE);
+			bulk.writeTo(dst);
+			buffer.putInt(writePosition + 4, bulk.documents());
+			buffer.putInt(writePosition, bulk.size());
+			writePosition += RECORD_HEADER_SIZE + bulk.size();
+			return true;
+		}
+
+		boolean read(BulkBuffer into) {
+			if (isFullyRead()) {
+				return false;
+			}
+			final int length = buffer.getInt(readPosition);
+			final ByteBuffer src = buffer.duplicate();
+			src.position(readPosition + RECORD_HEADER_SIZE);
+			into.write(src, length);
+			into.documentsWritten(buffer.getInt(readPosition + 4));
+			return true;
+		}
+
+		void commitRead() {
+			readPosition += RECORD_HEADER_SIZE + buffer.getInt(readPosition);
+			buffer.putInt(0, readPosition);
+		}
+
+		boolean isFullyRead() {
+			return readPosition >= writePosition;
+		}
+
+		int unreadRecords() {
+			int records = 0;
+			for (int position = readPosition; position < writePosition; records++) {
+				position += RECORD_HEADER_SIZE + buffer.getInt(position);
+			}
+			return records;
+		}
+
+		void delete() {
+			// the mapping itself is released when the buffer is garbage collected.
+			if (!file.delete()) {
+				log.warn("Cannot delete the spool segment: {}", file);
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.collect.ImmutableList;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Sends '_bulk' requests to the Elasticsearch nodes.
+ * <p>
+ * Connections are kept alive and reused: the response body is always consumed and the connection
+ * is never disconnected after a successful exchange, so it goes back to the JDK keep-alive cache
+ * of its node (up to {@code http.maxConnections} idle connections per node, 5 by default).
+ * <p>
+ * Nodes are picked round-robin. A node whose circuit is OPEN is skipped, and a node whose latency
+ * is well above the fastest node only gets a sample of the requests. On an I/O error or a 5xx
+ * response the request fails over to the next node.
+ * <p>
+ * A 200 response is parsed as it is read into a {@link BulkResponse}, which tells the items that
+ * failed in an accepted request.
+ * <p>
+ * With gzip enabled, a body of at least {@code gzipMinBytes} is deflated from the {@link BulkBuffer}
+ * straight into the chunked request stream, so the compressed body is never held in memory. Each
+ * sending thread reuses its own deflater, which is released by {@link #close()}.
+ */
+@Slf4j
+public class BulkTransport implements Closeable {
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 3000;
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	public static final long DEFAULT_OPEN_MILLIS = 30000L;
+	public static final int DEFAULT_GZIP_MIN_BYTES = 1024;
+
+	private static final double SLOW_NODE_FACTOR = 3.0d;
+	private static final double SLOW_NODE_MIN_LATENCY_MILLIS = 100.0d;
+	private static final int SLOW_NODE_SAMPLING = 10;
+	private static final int CHUNK_LENGTH = 16 * 1024;
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Observes every request, called on the sending thread.
+	 */
+	public interface Listener {
+		Listener NOOP = new Listener() {
+		};
+
+		default void onResponse(ElasticsearchNode node, int status, long elapsedNanos) {
+		}
+
+		default void onFailure(ElasticsearchNode node, long elapsedNanos) {
+		}
+
+		/**
+		 * A request failed on a node and is sent to the next one.
+		 */
+		default void onRetry(ElasticsearchNode node) {
+		}
+	}
+
+	private final List<ElasticsearchNode> nodes;
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final AtomicInteger nextNode;
+	private final int gzipLevel;
+	private final int gzipMinBytes;
+	private final ThreadLocal<Gzip> gzips;
+	private final Queue<Gzip> allGzips;
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressionNanos = new LongAdder();
+	private final Listener listener;
+
+	/**
+	 * @param gzipLevel    The deflate level of the request bodies, or a negative value to send them
+	 *                     uncompressed.
+	 * @param gzipMinBytes The size below which a request body is sent uncompressed.
+	 */
+	public BulkTransport(List<String> endpoint, int connectTimeoutMillis, int readTimeoutMillis,
+						 int failureThreshold, long openMillis, int gzipLevel, int gzipMinBytes) {
+		this(endpoint, connectTimeoutMillis, readTimeoutMillis, failureThreshold, openMillis, gzipLevel,
+				gzipMinBytes, Listener.NOOP);
+	}
+
+	public BulkTransport(List<String> endpoint, int connectTimeoutMillis, int readTimeoutMillis,
+						 int failureThreshold, long openMillis, int gzipLevel, int gzipMinBytes,
+						 Listener listener) {
+		ImmutableList.Builder<ElasticsearchNode> nodes = ImmutableList.builder();
+		endpoint.forEach(e -> nodes.add(new ElasticsearchNode(e, failureThreshold, openMillis)));
+		this.nodes = nodes.build();
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.nextNode = new AtomicInteger();
+		this.gzipLevel = gzipLevel;
+		this.gzipMinBytes = gzipMinBytes;
+		// the sender threads are long-lived, each of them reuses its own deflater.
+		this.allGzips = new ConcurrentLinkedQueue<>();
+		this.gzips = ThreadLocal.withInitial(() -> {
+			final Gzip gzip = new Gzip(gzipLevel);
+			allGzips.offer(gzip);
+			return gzip;
+		});
+		this.listener = listener;
+	}
+
+	public List<ElasticsearchNode> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return {@code true} when the circuit of at least one node is closed.
+	 */
+	public boolean hasHealthyNode() {
+		for (ElasticsearchNode node : nodes) {
+			if (node.getState() == ElasticsearchNode.State.CLOSED) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The HTTP status code and the failed items of the '_bulk' response, or the last 5xx
+	 * response when every available node answered with one.
+	 * @throws IOException When the request failed on every available node.
+	 */
+	public BulkResponse send(BulkBuffer bulk) throws IOException {
+		final List<ElasticsearchNode> tried = new ArrayList<>(nodes.size());
+		IOException lastError = null;
+		BulkResponse lastFailure = null;
+
+		ElasticsearchNode node;
+		while ((node = selectNode(tried)) != null) {
+			if (!tried.isEmpty()) {
+				listener.onRetry(node);
+			}
+			tried.add(node);
+			final long start = System.nanoTime();
+			try {
+				final BulkResponse response = post(node, bulk);
+				final int status = response.getStatus();
+				final long elapsed = System.nanoTime() - start;
+				if (status < 500) {
+					node.onSuccess(elapsed);
+					listener.onResponse(node, status, elapsed);
+					return response;
+				}
+				node.onFailure(elapsed, System.currentTimeMillis());
+				listener.onResponse(node, status, elapsed);
+				lastFailure = response;
+			} catch (IOException e) {
+				final long elapsed = System.nanoTime() - start;
+				node.onFailure(elapsed, System.currentTimeMillis());
+				listener.onFailure(node, elapsed);
+				log.warn("Error requesting to {}: {}", node, e.toString());
+				lastError = e;
+			}
+		}
+		if (null != lastFailure) {
+			return lastFailure;
+		}
+		throw null != lastError ? lastError : new IOException("No available elasticsearch node: " + nodes);
+	}
+
+	private ElasticsearchNode selectNode(List<ElasticsearchNode> tried) {
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		final int start = Math.floorMod(nextNode.getAndIncrement(), nodes.size());
+
+		double fastest = Double.MAX_VALUE;
+		for (ElasticsearchNode node : nodes) {
+			if (node.getState() == ElasticsearchNode.State.CLOSED && node.getRequests() > 0) {
+				fastest = Math.min(fastest, node.getLatencyMillis());
+			}
+		}
+
+		ElasticsearchNode slow = null;
+		for (int i = 0; i < nodes.size(); i++) {
+			final ElasticsearchNode node = nodes.get((start + i) % nodes.size());
+			if (tried.contains(node)) {
+				continue;
+			}
+			if (isSlow(node, fastest) && node.skipAsSlow(SLOW_NODE_SAMPLING)) {
+				if (null == slow) {
+					slow = node;
+				}
+				continue;
+			}
+			if (node.tryAcquire(now)) {
+				return node;
+			}
+		}
+		// every fast node is unavailable
+		return null != slow && slow.tryAcquire(now) ? slow : null;
+	}
+
+	private boolean isSlow(ElasticsearchNode node, double fastest) {
+		final double latency = node.getLatencyMillis();
+		return node.getState() == ElasticsearchNode.State.CLOSED
+				&& latency > SLOW_NODE_MIN_LATENCY_MILLIS
+				&& latency > fastest * SLOW_NODE_FACTOR;
+	}
+
+	private BulkResponse post(ElasticsearchNode node, BulkBuffer bulk) throws IOException {
+		log.debug("Request to Elasticsearch '{}', documents={}, bytes={}",
+				node.getBulkUrl(), bulk.documents(), bulk.size());
+		final HttpURLConnection connection = (HttpURLConnection)node.getBulkUrl().openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setConnectTimeout(connectTimeoutMillis);
+			connection.setReadTimeout(readTimeoutMillis);
+			connection.setUseCaches(false);
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/x-ndjson; charset=UTF-8");
+			// stream the payload without buffering the whole body again in the connection.
+			final boolean gzip = gzipLevel >= 0 && bulk.size() >= gzipMinBytes;
+			if (gzip) {
+				connection.setChunkedStreamingMode(CHUNK_LENGTH);
+				connection.setRequestProperty("Content-Encoding", "gzip");
+			} else {
+				connection.setFixedLengthStreamingMode(bulk.size());
+			}
+
+			try (OutputStream out = connection.getOutputStream()) {
+				if (gzip) {
+					writeGzip(bulk, out);
+				} else {
+					bulk.writeTo(out);
+				}
+			}
+
+			final int status = connection.getResponseCode();
+			if (status / 100 != 2) {
+				log.warn("Reporting returned code {} {}", status, connection.getResponseMessage());
+				// the connection is reused only when its response has been read to the end.
+				drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+				return BulkResponse.of(status);
+			}
+			final InputStream body = connection.getInputStream();
+			final BulkResponse response = BulkResponse.parse(status, body);
+			drain(body);
+			return response;
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	private void writeGzip(BulkBuffer bulk, OutputStream out) throws IOException {
+		final Gzip gzip = gzips.get();
+		// only taken by close() besides the owner thread.
+		synchronized (gzip) {
+			if (gzip.closed) {
+				throw new IOException("The transport is closed.");
+			}
+			final Deflater deflater = gzip.deflater;
+			final CRC32 crc = gzip.crc;
+			crc.reset();
+			crc.update(bulk.array(), 0, bulk.size());
+
+			out.write(GZIP_HEADER);
+			deflater.reset();
+			deflater.setInput(bulk.array(), 0, bulk.size());
+			deflater.finish();
+			long cpuNanos = 0;
+			while (!deflater.finished()) {
+				final long start = currentThreadCpuTime();
+				final int length = deflater.deflate(gzip.chunk);
+				cpuNanos += currentThreadCpuTime() - start;
+				out.write(gzip.chunk, 0, length);
+			}
+			writeIntLE(out, (int)crc.getValue());
+			writeIntLE(out, bulk.size());
+
+			uncompressedBytes.add(bulk.size());
+			compressedBytes.add(deflater.getBytesWritten() + GZIP_HEADER.length + 8);
+			compressionNanos.add(cpuNanos);
+		}
+	}
+
+	/**
+	 * Releases the native memory of the deflaters. A request compressed after it fails.
+	 */
+	@Override
+	public void close() {
+		Gzip gzip;
+		while (null != (gzip = allGzips.poll())) {
+			synchronized (gzip) {
+				gzip.closed = true;
+				gzip.deflater.end();
+			}
+		}
+	}
+
+	private static long currentThreadCpuTime() {
+		return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+				? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	private static void writeIntLE(OutputStream out, int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+
+	/**
+	 * @return The uncompressed size divided by the compressed size of the gzip request bodies.
+	 */
+	public double getCompressionRatio() {
+		final long compressed = compressedBytes.sum();
+		return compressed > 0 ? uncompressedBytes.sum() / (double)compressed : 1.0d;
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.sum();
+	}
+
+	/**
+	 * @return The CPU time of the sender threads spent in deflating the request bodies.
+	 */
+	public long getCompressionTime(TimeUnit unit) {
+		return unit.convert(compressionNanos.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * The deflater, checksum and output chunk of a sending thread.
+	 */
+	private static final class Gzip {
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private final byte[] chunk = new byte[CHUNK_LENGTH];
+		private boolean closed;
+
+		Gzip(int level) {
+			this.deflater = new Deflater(level, true);
+		}
+	}
+
+	private void drain(InputStream in) throws IOException {
+		if (null == in) {
+			return;
+		}
+		try (InputStream body = in) {
+			final byte[] skip = new byte[4096];
+			while (body.read(skip) != -1) {
+				// discard
+			}
+		}
+	}
+}
@@ -0,0 +1,400 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.horiga.kona.metrics.Resettable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Limits the number of metrics reported under each name prefix, so that a metric name carrying a
+ * request or a user id does not flood Elasticsearch with one document per id and per cycle.
+ * <p>
+ * The prefix of a metric is the longest prefix given a limit, or else its first {@code depth}
+ * segments. The distinct names registered under each prefix are counted by a {@link HyperLogLog} of
+ * 1KB. Once a prefix counts more names than its limit, only its {@code limit} metrics whose counts
+ * grew the most since the previous cycle are reported, gauges last. The others are rolled up into
+ * two gauges registered under the prefix:
+ * <pre>
+ * {prefix}._other           the sum of the counts of the rolled up counters, meters, timers and
+ *                           histograms
+ * {prefix}._other.metrics   the number of rolled up metrics
+ * </pre>
+ * The ranking is done once per report cycle and only for the prefixes over their limit. A tripped
+ * prefix stays tripped until the process restarts.
+ */
+@Slf4j
+public class CardinalityGuard extends MetricRegistryListener.Base implements Closeable {
+	public static final int DEFAULT_DEPTH = 1;
+	public static final int DEFAULT_LIMIT = 1000;
+
+	private static final String OTHER = "_other";
+	private static final String OTHER_METRICS = "_other.metrics";
+
+	private final MetricRegistry registry;
+	private final int depth;
+	private final int defaultLimit;
+	private final List<Map.Entry<String, Integer>> limits;
+	private final Map<String, HyperLogLog> distinctNames;
+	private final List<Prefix> tripped;
+	private volatile boolean countersReset;
+
+	public static Builder forRegistry(MetricRegistry registry) {
+		return new Builder(registry);
+	}
+
+	public static class Builder {
+		private final MetricRegistry registry;
+		private final Map<String, Integer> limits;
+		private int depth;
+		private int defaultLimit;
+
+		private Builder(MetricRegistry registry) {
+			this.registry = registry;
+			this.limits = new HashMap<>();
+			this.depth = DEFAULT_DEPTH;
+			this.defaultLimit = DEFAULT_LIMIT;
+		}
+
+		/**
+		 * @param depth The number of name segments of the prefixes without a limit of their own.
+		 * @return
+		 */
+		public Builder depth(int depth) {
+			this.depth = depth;
+			return this;
+		}
+
+		public Builder defaultLimit(int limit) {
+			this.defaultLimit = limit;
+			return this;
+		}
+
+		/**
+		 * @param prefix A name prefix, such as {@code "api.users"} for {@code "api.users.{id}.latency"}.
+		 * @return
+		 */
+		public Builder limit(String prefix, int limit) {
+			this.limits.put(prefix, limit);
+			return this;
+		}
+
+		public CardinalityGuard build() {
+			return new CardinalityGuard(registry, depth, defaultLimit, limits);
+		}
+	}
+
+	protected CardinalityGuard(MetricRegistry registry, int depth, int defaultLimit, Map<String, Integer> limits) {
+		this.registry = registry;
+		this.depth = Math.max(1, depth);
+		this.defaultLimit = defaultLimit;
+		this.limits = new ArrayList<>(limits.entrySet());
+		// the longest prefix first.
+		this.limits.sort(Comparator.comparingInt((Map.Entry<String, Integer> e) -> e.getKey().length()).reversed());
+		this.distinctNames = new ConcurrentHashMap<>();
+		this.tripped = new CopyOnWriteArrayList<>();
+		registry.addListener(this);
+	}
+
+	/**
+	 * @return A filter matching the metrics of {@code filter} which are not rolled up.
+	 */
+	public MetricFilter filter(MetricFilter filter) {
+		return (name, metric) -> filter.matches(name, metric) && isReported(name);
+	}
+
+	/**
+	 * Starts a report cycle: trips the prefixes which went over their limit, and ranks the metrics of
+	 * the tripped prefixes.
+	 *
+	 * @return The prefixes tripped by this cycle.
+	 */
+	public synchronized List<String> beginCycle() {
+		List<String> newlyTripped = Collections.emptyList();
+		for (Map.Entry<String, HyperLogLog> entry : distinctNames.entrySet()) {
+			final String prefix = entry.getKey();
+			final int limit = limit(prefix);
+			if (!isTripped(prefix) && entry.getValue().estimate() > limit) {
+				if (newlyTripped.isEmpty()) {
+					newlyTripped = new ArrayList<>();
+				}
+				newlyTripped.add(prefix);
+				tripped.add(new Prefix(prefix, limit));
+				log.warn("The metric prefix '{}' has about {} distinct names, over its limit of {}. "
+						+ "The metrics with the smallest counts are rolled up into '{}.{}'.",
+						prefix, entry.getValue().estimate(), limit, prefix, OTHER);
+			}
+		}
+		if (!tripped.isEmpty()) {
+			rank();
+		}
+		return newlyTripped;
+	}
+
+	/**
+	 * Tells the guard that the reporter resets every reported counter, see
+	 * {@link ElasticsearchReporter.Builder#withResettable()}.
+	 */
+	void countersReset(boolean countersReset) {
+		this.countersReset = countersReset;
+	}
+
+	/**
+	 * @return The estimated number of distinct metric names registered under the prefix.
+	 */
+	public long estimate(String prefix) {
+		final HyperLogLog names = distinctNames.get(prefix);
+		return null != names ? names.estimate() : 0L;
+	}
+
+	@Override
+	public void close() {
+		registry.removeListener(this);
+		for (Prefix prefix : tripped) {
+			registry.remove(MetricRegistry.name(prefix.name, OTHER));
+			registry.remove(MetricRegistry.name(prefix.name, OTHER_METRICS));
+		}
+	}
+
+	private boolean isReported(String name) {
+		for (Prefix prefix : tripped) {
+			if (prefix.contains(name)) {
+				return prefix.reported.contains(name) || prefix.isOther(name);
+			}
+		}
+		return true;
+	}
+
+	private boolean isTripped(String prefix) {
+		for (Prefix p : tripped) {
+			if (p.name.equals(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Keeps the metrics of each tripped prefix whose counts grew the most since the previous cycle, in
+	 * one pass over the registry. A metric which has been active for long does not outrank a newly
+	 * active one by its cumulative count.
+	 */
+	private void rank() {
+		final Map<Prefix, PriorityQueue<Ranked>> top = new HashMap<>();
+		final Map<Prefix, Map<String, Long>> counts = new HashMap<>();
+		for (Prefix prefix : tripped) {
+			prefix.otherCount = 0;
+			prefix.otherMetrics = 0;
+			top.put(prefix, new PriorityQueue<>(prefix.limit + 1));
+			counts.put(prefix, new HashMap<>(prefix.lastCounts.size() * 2));
+		}
+		for (Map.Entry<String, Metric> entry : registry.getMetrics().entrySet()) {
+			final String name = entry.getKey();
+			final Prefix prefix = trippedPrefix(name);
+			if (null == prefix || prefix.isOther(name)) {
+				continue;
+			}
+			final Metric metric = entry.getValue();
+			long delta = Long.MIN_VALUE;
+			long count = Long.MIN_VALUE;
+			if (metric instanceof Counting) {
+				count = ((Counting)metric).getCount();
+				final Long last = prefix.lastCounts.get(name);
+				// a new metric, or a counter reset by the reporter since, counts from 0.
+				delta = null != last && count >= last && !isReset(prefix, name, metric) ? count - last : count;
+				counts.get(prefix).put(name, count);
+			}
+			final PriorityQueue<Ranked> ranked = top.get(prefix);
+			ranked.add(new Ranked(name, delta, count, metric));
+			if (ranked.size() > prefix.limit) {
+				prefix.rollUp(ranked.poll().metric);
+			}
+		}
+		top.forEach((prefix, ranked) -> {
+			final Set<String> reported = new HashSet<>(ranked.size() * 2);
+			ranked.forEach(r -> reported.add(r.name));
+			prefix.reported = reported;
+			// the counts of the removed metrics are dropped.
+			prefix.lastCounts = counts.get(prefix);
+		});
+	}
+
+	/**
+	 * @return {@code true} when the counter was reset by the previous report.
+	 */
+	private boolean isReset(Prefix prefix, String name, Metric metric) {
+		return (metric instanceof Resettable || countersReset && metric instanceof Counter)
+				&& prefix.reported.contains(name);
+	}
+
+	/**
+	 * @return The tripped prefix the metric belongs to, if any.
+	 */
+	private Prefix trippedPrefix(String name) {
+		for (Prefix prefix : tripped) {
+			if (prefix.contains(name)) {
+				return prefix;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The prefix the limit of the metric applies to, or {@code null} when the name is too short
+	 * to have one.
+	 */
+	private String prefix(String name) {
+		for (Map.Entry<String, Integer> limit : limits) {
+			if (isUnder(name, limit.getKey())) {
+				return limit.getKey();
+			}
+		}
+		int end = -1;
+		for (int i = 0; i < depth; i++) {
+			end = name.indexOf('.', end + 1);
+			if (end < 0) {
+				return null;
+			}
+		}
+		return name.substring(0, end);
+	}
+
+	private int limit(String prefix) {
+		for (Map.Entry<String, Integer> limit : limits) {
+			if (limit.getKey().equals(prefix)) {
+				return limit.getValue();
+			}
+		}
+		return defaultLimit;
+	}
+
+	private static boolean isUnder(String name, String prefix) {
+		return name.length() > prefix.length() && name.charAt(prefix.length()) == '.' && name.startsWith(prefix);
+	}
+
+	private void onMetricAdded(String name) {
+		final String prefix = prefix(name);
+		if (null == prefix || name.endsWith(OTHER) || name.endsWith(OTHER_METRICS)) {
+			return;
+		}
+		HyperLogLog names = distinctNames.get(prefix);
+		if (null == names) {
+			names = distinctNames.computeIfAbsent(prefix, p -> new HyperLogLog());
+		}
+		names.add(name);
+	}
+
+	@Override
+	public void onGaugeAdded(String name, Gauge<?> gauge) {
+		onMetricAdded(name);
+	}
+
+	@Override
+	public void onCounterAdded(String name, Counter counter) {
+		onMetricAdded(name);
+	}
+
+	@Override
+	public void onHistogramAdded(String name, Histogram histogram) {
+		onMetricAdded(name);
+	}
+
+	@Override
+	public void onMeterAdded(String name, Meter meter) {
+		onMetricAdded(name);
+	}
+
+	@Override
+	public void onTimerAdded(String name, Timer timer) {
+		onMetricAdded(name);
+	}
+
+	/**
+	 * A prefix over its limit, and the metrics reported in the current cycle.
+	 */
+	private final class Prefix {
+		private final String name;
+		private final int limit;
+		private volatile Set<String> reported = Collections.emptySet();
+		private volatile long otherCount;
+		private volatile int otherMetrics;
+		// the counts of the metrics at the previous ranking, only used by rank().
+		private Map<String, Long> lastCounts = Collections.emptyMap();
+
+		Prefix(String name, int limit) {
+			this.name = name;
+			this.limit = limit;
+			registry.register(MetricRegistry.name(name, OTHER), (Gauge<Long>)() -> otherCount);
+			registry.register(MetricRegistry.name(name, OTHER_METRICS), (Gauge<Integer>)() -> otherMetrics);
+		}
+
+		boolean contains(String metric) {
+			if (!isUnder(metric, name)) {
+				return false;
+			}
+			// a longer prefix with a limit of its own takes the metric.
+			for (Map.Entry<String, Integer> limit : limits) {
+				if (limit.getKey().length() > name.length() && isUnder(metric, limit.getKey())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean isOther(String metric) {
+			return metric.length() == name.length() + 1 + OTHER.length() && metric.endsWith(OTHER)
+					|| metric.length() == name.length() + 1 + OTHER_METRICS.length() && metric.endsWith(OTHER_METRICS);
+		}
+
+		void rollUp(Metric metric) {
+			if (metric instanceof Counting) {
+				otherCount += ((Counting)metric).getCount();
+			}
+			otherMetrics++;
+		}
+	}
+
+	/**
+	 * A metric ranked by the growth of its count, then by its count so that the idle metrics keep
+	 * their ranks, gauges last.
+	 */
+	private static final class Ranked implements Comparable<Ranked> {
+		private final String name;
+		private final long delta;
+		private final long count;
+		private final Metric metric;
+
+		Ranked(String name, long delta, long count, Metric metric) {
+			this.name = name;
+			this.delta = delta;
+			this.count = count;
+			this.metric = metric;
+		}
+
+		@Override
+		public int compareTo(Ranked o) {
+			final int byDelta = Long.compare(delta, o.delta);
+			return byDelta != 0 ? byDelta : Long.compare(count, o.count);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The static parts of the metric documents, encoded to UTF-8 once and written as raw bytes.
+ * <ul>
+ * <li>the bulk action line of each index and type, re-encoded when the index changes.</li>
+ * <li>the {@code @name}, {@code hostname} and additional fields of each metric name, evicted when
+ * the metric is removed from the registry.</li>
+ * <li>the name segments of each metric for the compact {@link DocumentLayout}s, evicted likewise.</li>
+ * </ul>
+ */
+public class DocumentHeaderCache extends MetricRegistryListener.Base {
+
+	private final JsonFactory jsonFactory;
+	private final String metricPrefixName;
+	private final String hostname;
+	private final Map<String, String> additionalFields;
+	private final Long ttl;
+	private final SerializedString timestampFieldName;
+	private final Map<String, SerializableString> headers;
+	private final Map<String, MetricPath> paths;
+	private final SerializableString hostHeader;
+	private volatile ActionLines actionLines;
+
+	public DocumentHeaderCache(JsonFactory jsonFactory, String timestampFieldName, String metricPrefixName,
+							   String hostname, Map<String, String> additionalFields, Long ttl) {
+		this.jsonFactory = jsonFactory;
+		this.timestampFieldName = new SerializedString(timestampFieldName);
+		this.metricPrefixName = metricPrefixName;
+		this.hostname = hostname;
+		this.additionalFields = additionalFields;
+		this.ttl = ttl;
+		this.headers = new ConcurrentHashMap<>();
+		this.paths = new ConcurrentHashMap<>();
+		this.hostHeader = encodeHostHeader();
+		this.actionLines = new ActionLines("");
+	}
+
+	public SerializableString timestampFieldName() {
+		return timestampFieldName;
+	}
+
+	/**
+	 * @return The bulk action line of the index and type, with its trailing new line.
+	 */
+	public SerializableString actionLine(String index, String type) {
+		ActionLines lines = actionLines;
+		if (!lines.index.equals(index)) {
+			lines = new ActionLines(index);
+			actionLines = lines;
+		}
+		SerializableString line = lines.lines.get(type);
+		if (null == line) {
+			line = encodeActionLine(index, type);
+			lines.lines.put(type, line);
+		}
+		return line;
+	}
+
+	/**
+	 * @return The common fields of the metric document following {@code @timestamp}, with a leading
+	 * comma, such as <code>,"@name":"prefix.name","hostname":"host","project":"kona"</code>.
+	 */
+	public SerializableString header(String name) {
+		SerializableString header = headers.get(name);
+		if (null == header) {
+			header = encodeHeader(name);
+			headers.put(name, header);
+		}
+		return header;
+	}
+
+	/**
+	 * @return The common fields of the compact documents following {@code @timestamp}, with a leading
+	 * comma, such as <code>,"hostname":"host","project":"kona"</code>.
+	 */
+	public SerializableString hostHeader() {
+		return hostHeader;
+	}
+
+	/**
+	 * @return The segments of the prefixed metric name, and its group for
+	 * {@link DocumentLayout#PER_PREFIX}: the metric prefix and the first segment of the name.
+	 */
+	public MetricPath path(String name) {
+		MetricPath path = paths.get(name);
+		if (null == path) {
+			path = new MetricPath(metricPrefixName, name);
+			paths.put(name, path);
+		}
+		return path;
+	}
+
+	public int size() {
+		return headers.size();
+	}
+
+	private SerializedString encodeActionLine(String index, String type) {
+		return preEncoded(encode(json -> {
+			json.writeStartObject();
+			json.writeObjectFieldStart("index");
+			json.writeStringField("_index", index);
+			json.writeStringField("_type", type);
+			if (ttl > 0) {
+				json.writeStringField("_ttl", ttl.toString());
+			}
+			json.writeEndObject();
+			json.writeEndObject();
+		}) + "\n");
+	}
+
+	private SerializedString encodeHeader(String name) {
+		return encodeFields(json -> json.writeStringField("@name", MetricRegistry.name(metricPrefixName, name)));
+	}
+
+	private SerializedString encodeHostHeader() {
+		return encodeFields(json -> {
+		});
+	}
+
+	private SerializedString encodeFields(JsonWriter leading) {
+		final String header = encode(json -> {
+			json.writeStartObject();
+			leading.write(json);
+			json.writeStringField("hostname", hostname);
+			for (Map.Entry<String, String> field : additionalFields.entrySet()) {
+				json.writeStringField(field.getKey(), field.getValue());
+			}
+			json.writeEndObject();
+		});
+		// the fields without the enclosing braces
+		return preEncoded("," + header.substring(1, header.length() - 1));
+	}
+
+	private String encode(JsonWriter writer) {
+		final StringWriter out = new StringWriter();
+		try (JsonGenerator json = jsonFactory.createGenerator(out)) {
+			writer.write(json);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	private static SerializedString preEncoded(String raw) {
+		final SerializedString serialized = new SerializedString(raw);
+		serialized.asUnquotedUTF8();
+		return serialized;
+	}
+
+	@Override
+	public void onGaugeRemoved(String name) {
+		headers.remove(name);
+		paths.remove(name);
+	}
+
+	@Override
+	public void onCounterRemoved(String name) {
+		headers.remove(name);
+		paths.remove(name);
+	}
+
+	@Override
+	public void onHistogramRemoved(String name) {
+		headers.remove(name);
+		paths.remove(name);
+	}
+
+	@Override
+	public void onMeterRemoved(String name) {
+		headers.remove(name);
+		paths.remove(name);
+	}
+
+	@Override
+	public void onTimerRemoved(String name) {
+		headers.remove(name);
+		paths.remove(name);
+	}
+
+	@FunctionalInterface
+	private interface JsonWriter {
+		void write(JsonGenerator json) throws IOException;
+	}
+
+	public static final class MetricPath {
+		private final String group;
+		private final SerializableString[] segments;
+
+		MetricPath(String metricPrefixName, String name) {
+			final int dot = name.indexOf('.');
+			this.group = MetricRegistry.name(metricPrefixName, dot < 0 ? name : name.substring(0, dot));
+			final String[] split = MetricRegistry.name(metricPrefixName, name).split("\\.", -1);
+			this.segments = new SerializableString[split.length];
+			for (int i = 0; i < split.length; i++) {
+				segments[i] = preEncoded(split[i]);
+			}
+		}
+
+		public String getGroup() {
+			return group;
+		}
+
+		public SerializableString[] getSegments() {
+			return segments;
+		}
+	}
+
+	private static final class ActionLines {
+		private final String index;
+		private final Map<String, SerializableString> lines = new ConcurrentHashMap<>();
+
+		ActionLines(String index) {
+			this.index = index;
+		}
+	}
+}
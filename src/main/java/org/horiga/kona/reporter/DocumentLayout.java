@@ -0,0 +1,53 @@
+package org.horiga.kona.reporter;
+
+import java.util.Comparator;
+
+/**
+ * How the metrics of a report cycle are packed into Elasticsearch documents.
+ * <p>
+ * The compact layouts nest the fields of each metric under the segments of its name, under the
+ * {@code _type} "metrics":
+ * <pre>
+ * {"@timestamp":"...","hostname":"web-01","project":"kona",
+ *  "kona":{"jvm":{"memory":{"heap":{"used":{"longValue":1048576}}}},
+ *          "api":{"requests":{"count":120,"m1_rate":2.0, ...}}}}
+ * </pre>
+ * A document is closed once it holds {@code maxFields} metric fields, so a host with many metrics
+ * still writes a few documents per cycle instead of one per metric. With the parallel collection,
+ * each chunk of metrics writes its own documents.
+ * See {@code elasticsearch/kona-metrics-template.json} for an index template of these documents.
+ */
+public enum DocumentLayout {
+	/**
+	 * One document per metric, with its {@code @name} and its type as {@code _type}.
+	 */
+	PER_METRIC,
+	/**
+	 * One document per host per cycle, holding every metric.
+	 */
+	PER_HOST,
+	/**
+	 * One document per first segment of the metric names, such as {@code jvm} or {@code api},
+	 * named by its {@code @prefix}.
+	 */
+	PER_PREFIX;
+
+	public static final int DEFAULT_MAX_FIELDS = 1000;
+
+	/**
+	 * The order of the metric names in the compact layouts: segment by segment, so that the metrics
+	 * sharing a segment prefix are next to each other. {@code "a.b"}, {@code "a.b.c"} and
+	 * {@code "a.b-c"} are in that order, while the natural order puts {@code "a.b-c"} in between.
+	 */
+	public static final Comparator<String> NAME_ORDER = (a, b) -> {
+		final int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++) {
+			final char x = a.charAt(i);
+			final char y = b.charAt(i);
+			if (x != y) {
+				return x == '.' ? -1 : y == '.' ? 1 : Character.compare(x, y);
+			}
+		}
+		return Integer.compare(a.length(), b.length());
+	};
+}
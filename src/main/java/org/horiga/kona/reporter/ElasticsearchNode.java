@@ -0,0 +1,141 @@
+package org.horiga.kona.reporter;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of one Elasticsearch node as seen by {@link BulkTransport}.
+ * <p>
+ * Keeps an exponentially weighted moving average of the request latency and the error rate, and a
+ * circuit breaker: after {@code failureThreshold} consecutive failures the node is OPEN and skipped
+ * for {@code openMillis}, then a single HALF_OPEN probe request decides whether it is CLOSED again.
+ */
+public class ElasticsearchNode {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final double ALPHA = 0.2d;
+
+	private final String endpoint;
+	private final URL bulkUrl;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean probing;
+	private int slowSkips;
+	private double latencyMillis;
+	private double errorRate;
+	private long requests;
+	private long failures;
+
+	public ElasticsearchNode(String endpoint, int failureThreshold, long openMillis) {
+		this.endpoint = endpoint;
+		try {
+			this.bulkUrl = new URL("http://" + endpoint + "/_bulk");
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid elasticsearch endpoint: " + endpoint, e);
+		}
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return {@code true} when a request may be sent to this node now. An OPEN node whose wait
+	 * has elapsed moves to HALF_OPEN and this call reserves its single probe request.
+	 */
+	synchronized boolean tryAcquire(long now) {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (now - openedAt < openMillis) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+				probing = false;
+				// fall through
+			default:
+				if (probing) {
+					return false;
+				}
+				probing = true;
+				return true;
+		}
+	}
+
+	/**
+	 * A slow node is still sent one of every {@code sampling} requests, so that its latency
+	 * keeps being measured and it is used again once it recovers.
+	 *
+	 * @return {@code true} when this request should skip the node.
+	 */
+	synchronized boolean skipAsSlow(int sampling) {
+		return ++slowSkips % sampling != 0;
+	}
+
+	synchronized void onSuccess(long elapsedNanos) {
+		requests++;
+		latencyMillis = ewma(latencyMillis, elapsedNanos / (double)TimeUnit.MILLISECONDS.toNanos(1));
+		errorRate = ewma(errorRate, 0d);
+		consecutiveFailures = 0;
+		probing = false;
+		state = State.CLOSED;
+	}
+
+	synchronized void onFailure(long elapsedNanos, long now) {
+		requests++;
+		failures++;
+		latencyMillis = ewma(latencyMillis, elapsedNanos / (double)TimeUnit.MILLISECONDS.toNanos(1));
+		errorRate = ewma(errorRate, 1d);
+		consecutiveFailures++;
+		probing = false;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = now;
+		}
+	}
+
+	private double ewma(double current, double sample) {
+		return requests <= 1 ? sample : current + ALPHA * (sample - current);
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	URL getBulkUrl() {
+		return bulkUrl;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public synchronized double getErrorRate() {
+		return errorRate;
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s{state=%s, latencyMillis=%.1f, errorRate=%.2f}",
+				endpoint, state, latencyMillis, errorRate);
+	}
+}
@@ -8,44 +8,77 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
+import org.horiga.kona.metrics.HdrHistogramReservoir;
+import org.horiga.kona.metrics.HdrSnapshot;
+import org.horiga.kona.metrics.Resettable;
+import org.horiga.kona.metrics.ResettableCounter;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
-import java.io.Writer;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
-import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 @Slf4j
 public class ElasticsearchReporter extends ScheduledReporter {
 	public static final String DEFAULT_ELASTICSEARCH_INDEX_PREFIX = "logstash-";
 	public static final String DEFAULT_TIMESTAMP_FIELD_NAME = "@timestamp";
 	public static final int DEFAULT_BULK_LIMIT = 2500;
-
-	private static final String ES_BULK_INDEX_RAW_FORMAT = "{\"index\":{\"_index\":\"%s\",\"_type\":\"%s\"}}";
-	@Deprecated
-	private static final String ES_BULK_INDEX_WITH_TTL_RAW_FORMAT = "{\"index\":{\"_index\":\"%s\",\"_type\":\"%s\",\"_ttl\":\"%s\"}}";
+	public static final int DEFAULT_BULK_SIZE_LIMIT = 5 * 1024 * 1024;
+	public static final long DEFAULT_BACKPRESSURE_TIMEOUT_MILLIS = 1000L;
+	public static final double DEFAULT_SPOOL_REPLAY_RATE = 2.0d;
+	public static final int DEFAULT_COLLECTION_CHUNK_SIZE = 1000;
+	public static final int DEFAULT_ITEM_RETRIES = 3;
+	public static final long DEFAULT_ITEM_RETRY_BACKOFF_MILLIS = 100L;
+	public static final long DEFAULT_ITEM_RETRY_MAX_BACKOFF_MILLIS = 5000L;
+	public static final int DEFAULT_SINK_QUEUE_CAPACITY = 8;
+
+	private static final int INITIAL_BULK_BUFFER_SIZE = 64 * 1024;
+	private static final int INITIAL_HISTOGRAM_BUFFER_SIZE = 4 * 1024;
 	private static final DecimalFormat MONTH_AND_DAY_FORMAT = new DecimalFormat("00");
 
 	private final String indexPrefix;
@@ -57,15 +90,46 @@ public class ElasticsearchReporter extends ScheduledReporter {
 	@Deprecated
 	private final Long ttl;
 	private final Integer bulkLimit;
+	private final int bulkSizeLimit;
+	private final int maxInFlightRequests;
 	private final JsonFactory jsonFactory;
-	private final List<String> endpoint;
+	private final BulkTransport transport;
 	private final Map<String, String> additionalFields;
 
 	private final boolean enabled;
 	private final boolean resettable;
 
-	private StringWriter buffer;
-	private AtomicInteger nextHost, bulkCounter;
+	private final boolean async;
+	private final BulkSender sender;
+	private final BulkSpool spool;
+	private final MetricRegistry registry;
+	private final ReportedStateCache reportedStates;
+	private final boolean encodeHistograms;
+	private final DocumentHeaderCache documentHeaders;
+	private final ScheduledExecutorService replayExecutor;
+	private final ForkJoinPool collectionPool;
+	private final int collectionChunkSize;
+	private final Queue<EncodedChunk> encodedChunks;
+	private final long cycleBudgetNanos;
+	private final ReporterMetrics selfMetrics;
+	private final DocumentLayout documentLayout;
+	private final int maxDocumentFields;
+	private final int itemRetries;
+	private final long itemRetryBackoffMillis;
+	private final long itemRetryMaxBackoffMillis;
+	private final MetricRollup rollup;
+	private final Map<String, BulkSink> sinks;
+	private final List<BulkSender> sinkSenders;
+	private final CardinalityGuard cardinalityGuard;
+	private final GaugeEvaluator gaugeEvaluator;
+	private final MetricHistory history;
+	private final MetricFilter filter;
+	private final ElasticsearchReporter engine;
+	private final List<ElasticsearchReporter> attached;
+	private final LogPreviewSink disabledPreview = new LogPreviewSink();
+	private long collectNanos;
+	private BulkChunks cycleBulk;
+	private volatile boolean detached;
 
 	public static Builder forRegistry(MetricRegistry registry) {
 		return new Builder(registry, DEFAULT_ELASTICSEARCH_INDEX_PREFIX);
@@ -92,6 +156,40 @@ public class ElasticsearchReporter extends ScheduledReporter {
 		private String timezoneId;
 		private String timestampFieldName;
 		private Integer bulkLimit;
+		private int bulkSizeLimit;
+		private int maxInFlightRequests;
+		private int connectTimeoutMillis;
+		private int readTimeoutMillis;
+		private int failureThreshold;
+		private long circuitOpenMillis;
+		private boolean async;
+		private int queueCapacity;
+		private BulkSender.BackpressurePolicy backpressurePolicy;
+		private long backpressureTimeoutMillis;
+		private File spoolDirectory;
+		private long spoolMaxBytes;
+		private double spoolReplayRate;
+		private int gzipLevel;
+		private int gzipMinBytes;
+		private long heartbeatMillis;
+		private boolean encodeHistograms;
+		private int collectionParallelism;
+		private int collectionChunkSize;
+		private long cycleBudgetMillis;
+		private String selfMetricsPrefix;
+		private boolean excludeSelfMetrics;
+		private DocumentLayout documentLayout;
+		private int maxDocumentFields;
+		private int itemRetries;
+		private long itemRetryBackoffMillis;
+		private long itemRetryMaxBackoffMillis;
+		private MetricRollup rollup;
+		private Map<String, BulkSink> sinks;
+		private int sinkQueueCapacity;
+		private BulkSender.BackpressurePolicy sinkPolicy;
+		private CardinalityGuard cardinalityGuard;
+		private GaugeEvaluator gaugeEvaluator;
+		private MetricHistory history;
 		private Map<String, String> additionalFields;
 		private boolean enabled;
 		private boolean resettable;
@@ -108,6 +206,33 @@ public class ElasticsearchReporter extends ScheduledReporter {
 			this.ttl = 0L;
 			this.timezoneId = ZoneId.systemDefault().getId();
 			this.bulkLimit = DEFAULT_BULK_LIMIT;
+			this.bulkSizeLimit = DEFAULT_BULK_SIZE_LIMIT;
+			this.maxInFlightRequests = 0;
+			this.connectTimeoutMillis = BulkTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+			this.readTimeoutMillis = BulkTransport.DEFAULT_READ_TIMEOUT_MILLIS;
+			this.failureThreshold = BulkTransport.DEFAULT_FAILURE_THRESHOLD;
+			this.circuitOpenMillis = BulkTransport.DEFAULT_OPEN_MILLIS;
+			this.async = false;
+			this.queueCapacity = 0;
+			this.backpressurePolicy = BulkSender.BackpressurePolicy.BLOCK;
+			this.backpressureTimeoutMillis = DEFAULT_BACKPRESSURE_TIMEOUT_MILLIS;
+			this.spoolReplayRate = DEFAULT_SPOOL_REPLAY_RATE;
+			this.gzipLevel = -1;
+			this.gzipMinBytes = BulkTransport.DEFAULT_GZIP_MIN_BYTES;
+			this.heartbeatMillis = -1L;
+			this.collectionParallelism = 0;
+			this.collectionChunkSize = DEFAULT_COLLECTION_CHUNK_SIZE;
+			this.cycleBudgetMillis = 0L;
+			this.selfMetricsPrefix = ReporterMetrics.DEFAULT_PREFIX;
+			this.excludeSelfMetrics = false;
+			this.documentLayout = DocumentLayout.PER_METRIC;
+			this.maxDocumentFields = DocumentLayout.DEFAULT_MAX_FIELDS;
+			this.itemRetries = DEFAULT_ITEM_RETRIES;
+			this.itemRetryBackoffMillis = DEFAULT_ITEM_RETRY_BACKOFF_MILLIS;
+			this.itemRetryMaxBackoffMillis = DEFAULT_ITEM_RETRY_MAX_BACKOFF_MILLIS;
+			this.sinks = new LinkedHashMap<>();
+			this.sinkQueueCapacity = DEFAULT_SINK_QUEUE_CAPACITY;
+			this.sinkPolicy = BulkSender.BackpressurePolicy.DROP_OLDEST;
 			this.enabled = true;
 			this.resettable = false;
 		}
@@ -153,16 +278,309 @@ public class ElasticsearchReporter extends ScheduledReporter {
 			return this;
 		}
 
+		/**
+		 * @param bulkSizeLimit The maximum size of a '_bulk' request body in bytes. A request is closed
+		 *                      after the document which reaches this size.
+		 * @return
+		 */
+		public Builder bulkSizeLimit(int bulkSizeLimit) {
+			this.bulkSizeLimit = bulkSizeLimit;
+			return this;
+		}
+
+		/**
+		 * @param maxInFlightRequests The number of '_bulk' requests sent concurrently.
+		 *                            Defaults to the number of Elasticsearch nodes.
+		 * @return
+		 */
+		public Builder maxInFlightRequests(int maxInFlightRequests) {
+			this.maxInFlightRequests = maxInFlightRequests;
+			return this;
+		}
+
+		public Builder connectTimeout(int connectTimeout, TimeUnit unit) {
+			this.connectTimeoutMillis = (int)unit.toMillis(connectTimeout);
+			return this;
+		}
+
+		public Builder readTimeout(int readTimeout, TimeUnit unit) {
+			this.readTimeoutMillis = (int)unit.toMillis(readTimeout);
+			return this;
+		}
+
+		/**
+		 * @param failureThreshold The number of consecutive failures which opens the circuit of a node.
+		 * @param openDuration     How long an open node is skipped before a probe request is sent to it.
+		 * @return
+		 */
+		public Builder circuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+			this.failureThreshold = failureThreshold;
+			this.circuitOpenMillis = unit.toMillis(openDuration);
+			return this;
+		}
+
+		/**
+		 * Sends the bulk batches in the background: {@code report()} only encodes the metrics and queues
+		 * the batches, and does not wait for Elasticsearch.
+		 *
+		 * @param queueCapacity The number of encoded batches waiting to be sent.
+		 * @param policy        What to do with a new batch when the queue is full.
+		 * @return
+		 */
+		public Builder async(int queueCapacity, BulkSender.BackpressurePolicy policy) {
+			this.async = true;
+			this.queueCapacity = queueCapacity;
+			this.backpressurePolicy = policy;
+			return this;
+		}
+
+		/**
+		 * @param timeout The deadline of {@link BulkSender.BackpressurePolicy#BLOCK} in the async mode.
+		 * @return
+		 */
+		public Builder backpressureTimeout(long timeout, TimeUnit unit) {
+			this.backpressureTimeoutMillis = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Keeps the bulk batches which could not be sent to any Elasticsearch node in a local spool,
+		 * and replays them once a node is healthy again.
+		 *
+		 * @param directory The spool directory.
+		 * @param maxBytes  The size of the spool. The oldest batches are evicted beyond this size.
+		 * @return
+		 */
+		public Builder spool(File directory, long maxBytes) {
+			this.spoolDirectory = directory;
+			this.spoolMaxBytes = maxBytes;
+			return this;
+		}
+
+		/**
+		 * @param batchesPerSecond The maximum rate at which spooled batches are replayed.
+		 * @return
+		 */
+		public Builder spoolReplayRate(double batchesPerSecond) {
+			this.spoolReplayRate = batchesPerSecond;
+			return this;
+		}
+
+		/**
+		 * Sends the '_bulk' request bodies with {@code Content-Encoding: gzip}.
+		 *
+		 * @param level    The deflate level, 1 (fastest) to 9 (smallest), or -1 to send the bodies uncompressed.
+		 * @param minBytes The size below which a request body is sent uncompressed.
+		 * @return
+		 */
+		public Builder gzip(int level, int minBytes) {
+			if (level < -1 || level > Deflater.BEST_COMPRESSION) {
+				throw new IllegalArgumentException("Invalid gzip level: " + level);
+			}
+			this.gzipLevel = level;
+			this.gzipMinBytes = minBytes;
+			return this;
+		}
+
+		/**
+		 * Reports only the metrics which changed since the previous cycle: a counter with another count,
+		 * a meter, timer or histogram with new events, or a gauge with another value.
+		 *
+		 * @param heartbeat The interval of the cycles which report every metric regardless.
+		 * @return
+		 */
+		public Builder onlyChanged(long heartbeat, TimeUnit unit) {
+			this.heartbeatMillis = unit.toMillis(heartbeat);
+			return this;
+		}
+
+		/**
+		 * Ships the timers and histograms backed by an {@link HdrHistogramReservoir} as a compressed,
+		 * base64 encoded HdrHistogram in the {@code hdr} field, instead of the fixed percentile fields,
+		 * so that their intervals can be merged across hosts. Timer histograms are in nanoseconds.
+		 *
+		 * @return
+		 */
+		public Builder encodeHistograms() {
+			this.encodeHistograms = true;
+			return this;
+		}
+
+		/**
+		 * Snapshots and encodes the metrics on a fork-join pool instead of the reporter thread. The
+		 * sorted metrics are split into chunks of {@code chunkSize}, encoded concurrently and merged into
+		 * the '_bulk' batches in their original order. Gauges are then evaluated on the pool threads.
+		 *
+		 * @param parallelism The number of threads of the pool.
+		 * @return
+		 */
+		public Builder parallelCollection(int parallelism, int chunkSize) {
+			this.collectionParallelism = parallelism;
+			this.collectionChunkSize = chunkSize;
+			return this;
+		}
+
+		/**
+		 * Stops collecting the metrics of a report cycle once it has run for {@code budget}. The metrics
+		 * not collected yet, the last ones in the order gauges, counters, histograms, meters and timers,
+		 * are skipped and counted by the {@code kona.reporter.cycle.skipped} counter of the registry.
+		 *
+		 * @return
+		 */
+		public Builder cycleBudget(long budget, TimeUnit unit) {
+			this.cycleBudgetMillis = unit.toMillis(budget);
+			return this;
+		}
+
+		public Builder documentLayout(DocumentLayout documentLayout) {
+			this.documentLayout = documentLayout;
+			return this;
+		}
+
+		/**
+		 * @param maxFields The number of metric fields after which a document of a compact layout is
+		 *                  closed, {@link DocumentLayout#DEFAULT_MAX_FIELDS} by default.
+		 * @return
+		 */
+		public Builder documentLayout(DocumentLayout documentLayout, int maxFields) {
+			this.documentLayout = documentLayout;
+			this.maxDocumentFields = maxFields;
+			return this;
+		}
+
+		/**
+		 * Resends the items of an accepted '_bulk' request which Elasticsearch rejected with 429 or 5xx,
+		 * such as {@code es_rejected_execution_exception}, and only them. The n-th retry waits between
+		 * half and all of {@code initialBackoff * 2^n}, up to {@code maxBackoff}. The items still rejected
+		 * after the last retry fail the batch, and are spooled if the spool is enabled.
+		 *
+		 * @param maxRetries The number of retries, 0 to never resend the rejected items.
+		 * @return
+		 */
+		public Builder itemRetry(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit unit) {
+			this.itemRetries = maxRetries;
+			this.itemRetryBackoffMillis = unit.toMillis(initialBackoff);
+			this.itemRetryMaxBackoffMillis = unit.toMillis(maxBackoff);
+			return this;
+		}
+
+		/**
+		 * Reports the gauges, timers and histograms sampled by the rollup as aggregates of the report
+		 * interval: a gauge with the {@code min}, {@code max}, {@code sum}, {@code count} and {@code last}
+		 * of its samples, a timer or histogram with the percentiles of every value of the interval. The
+		 * rollup is closed when the reporter is stopped.
+		 *
+		 * @return
+		 */
+		public Builder rollup(MetricRollup rollup) {
+			this.rollup = rollup;
+			return this;
+		}
+
+		/**
+		 * Writes every batch to the sink too, such as a {@link RollingFileSink} or a
+		 * {@link LogPreviewSink}. The metrics are encoded once, and each sink gets a copy of the batches
+		 * in its own queue, on its own thread. With {@code enabled(false)}, the batches only go to the
+		 * sinks.
+		 *
+		 * @param name The name of the sink in the thread names and in the {@link ReporterMetrics}.
+		 * @return
+		 */
+		public Builder sink(String name, BulkSink sink) {
+			this.sinks.put(name, sink);
+			return this;
+		}
+
+		/**
+		 * @param queueCapacity The number of batches waiting to be written, per sink. Defaults to 8.
+		 * @param policy        What to do with a new batch when the queue of a sink is full, drops the
+		 *                      oldest batch by default. The reporter never waits for the sinks longer
+		 *                      than the backpressure timeout.
+		 * @return
+		 */
+		public Builder sinkQueue(int queueCapacity, BulkSender.BackpressurePolicy policy) {
+			this.sinkQueueCapacity = queueCapacity;
+			this.sinkPolicy = policy;
+			return this;
+		}
+
+		/**
+		 * Reports only the most active metrics of the name prefixes which went over their limit, and
+		 * rolls up the others. See {@link CardinalityGuard}. The guard is closed when the reporter is
+		 * stopped.
+		 *
+		 * @return
+		 */
+		public Builder cardinalityGuard(CardinalityGuard cardinalityGuard) {
+			this.cardinalityGuard = cardinalityGuard;
+			return this;
+		}
+
+		/**
+		 * Evaluates the gauges on the threads of the evaluator, with a timeout. A gauge which did not
+		 * return in time is reported with its last value and a {@code staleMillis} field. See
+		 * {@link GaugeEvaluator}. The evaluator is closed when the reporter is stopped.
+		 *
+		 * @return
+		 */
+		public Builder gaugeEvaluator(GaugeEvaluator gaugeEvaluator) {
+			this.gaugeEvaluator = gaugeEvaluator;
+			return this;
+		}
+
+		/**
+		 * Keeps the values reported by the last cycles in memory, see {@link MetricHistory}.
+		 *
+		 * @return
+		 */
+		public Builder history(MetricHistory history) {
+			this.history = history;
+			return this;
+		}
+
+		/**
+		 * @param selfMetricsPrefix The prefix of the metrics the reporter records about itself into the
+		 *                          registry, {@code kona.reporter} by default. See {@link ReporterMetrics}.
+		 * @return
+		 */
+		public Builder selfMetricsPrefix(String selfMetricsPrefix) {
+			this.selfMetricsPrefix = selfMetricsPrefix;
+			return this;
+		}
+
+		/**
+		 * Keeps the metrics the reporter records about itself in the registry, but out of the documents
+		 * it sends to Elasticsearch.
+		 *
+		 * @return
+		 */
+		public Builder excludeSelfMetrics() {
+			this.excludeSelfMetrics = true;
+			return this;
+		}
+
 		public Builder additionalFields(Map<String, String> additionalFields) {
 			this.additionalFields = additionalFields;
 			return this;
 		}
 
+		/**
+		 * @param enabled {@code false} sends the batches only to the sinks. Without any sink, a preview
+		 *                of a batch every 10 seconds is logged at INFO by a {@link LogPreviewSink}.
+		 * @return
+		 */
 		public Builder enabled(boolean enabled) {
 			this.enabled = enabled;
 			return this;
 		}
 
+		/**
+		 * Resets every counter by its reported count. Increments landing between the read and the
+		 * reset of a plain {@link Counter} are counted twice, use a {@link ResettableCounter} for exact
+		 * per-interval counts: it is always reset atomically, with or without this option.
+		 *
+		 * @return
+		 */
 		public Builder withResettable() {
 			this.resettable = true;
 			return this;
@@ -174,40 +592,87 @@ public class ElasticsearchReporter extends ScheduledReporter {
 		 * @return
 		 */
 		public ElasticsearchReporter build(String elasticsearchEndpoint) {
-			return new ElasticsearchReporter(registry, indexPrefix,
-					timestampFieldName, metricPrefix, hostname, ttl, filter, rateUnit,
-					durationUnit, ZoneId.of(timezoneId), bulkLimit, additionalFields, enabled, resettable,
-					elasticsearchEndpoint);
-		}
-	}
-
-	protected ElasticsearchReporter(
-			MetricRegistry registry,
-			String indexPrefix,
-			String timestampFieldName,
-			String metricPrefixName,
-			String hostname,
-			Long ttl,
-			MetricFilter filter,
-			TimeUnit rateUnit,
-			TimeUnit durationUnit,
-			ZoneId timezoneId,
-			Integer bulkLimit,
-			Map<String, String> additionalFields,
-			boolean enabled,
-			boolean resettable,
-			String endpoint
-	) {
-
-		super(registry, "elasticsearch-reporter", filter, rateUnit, durationUnit);
-
-		String _indexPrefix = Strings.isNullOrEmpty(indexPrefix) ? "logstash-" : indexPrefix;
+			BulkSpool spool = null;
+			if (null != spoolDirectory) {
+				try {
+					spool = new BulkSpool(spoolDirectory,
+							Math.max(BulkSpool.DEFAULT_SEGMENT_SIZE, 2 * bulkSizeLimit), spoolMaxBytes);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			final ReporterMetrics selfMetrics = new ReporterMetrics(registry, selfMetricsPrefix);
+			return new ElasticsearchReporter(this, selfMetrics, spool, null,
+					new BulkTransport(Splitter.on(",").trimResults().omitEmptyStrings().splitToList(elasticsearchEndpoint),
+							connectTimeoutMillis, readTimeoutMillis, failureThreshold, circuitOpenMillis,
+							gzipLevel, gzipMinBytes, selfMetrics));
+		}
+
+		/**
+		 * Builds a reporter of the registry reported by the cycle of {@code engine}, for the applications
+		 * with many registries such as one per tenant. It has no thread of its own: its documents are
+		 * encoded on the scheduler thread and the collection pool of the engine, and written into the
+		 * same '_bulk' batches as the documents of the engine and of its other attached reporters, sent
+		 * over the connections of the engine. The index prefix, the additional fields, the filter, the
+		 * units, the document layout and the metric options are its own; the options of the batches,
+		 * the connections, the spool and the sinks are the ones of the engine.
+		 * <pre>
+		 * ElasticsearchReporter engine = ElasticsearchReporter.forRegistry(registry).parallelCollection(4, 1000)
+		 *     .build("10.10.10.1:9200,10.10.10.2:9200");
+		 * ElasticsearchReporter.forRegistry(tenantRegistry, "tenant-a-").additionalFields(fields).attachTo(engine);
+		 * engine.start(1, TimeUnit.MINUTES);
+		 * </pre>
+		 * The reporter is not started, and leaves the engine when it is stopped.
+		 *
+		 * @param engine A reporter built with {@link #build(String)}.
+		 * @return
+		 */
+		public ElasticsearchReporter attachTo(ElasticsearchReporter engine) {
+			if (null != engine.engine) {
+				throw new IllegalArgumentException("The engine is itself attached to another reporter.");
+			}
+			final ReporterMetrics selfMetrics = new ReporterMetrics(registry, selfMetricsPrefix);
+			final ElasticsearchReporter reporter = new ElasticsearchReporter(this, selfMetrics, null, engine,
+					engine.transport);
+			engine.attached.add(reporter);
+			return reporter;
+		}
+	}
+
+	/**
+	 * @param spool     The spool of the reporter, {@code null} without spool.
+	 * @param engine    The reporter whose cycle reports this one, {@code null} for a reporter of its own.
+	 * @param transport The connections of the reporter, the ones of the engine for an attached reporter.
+	 */
+	protected ElasticsearchReporter(Builder builder, ReporterMetrics selfMetrics, BulkSpool spool,
+									ElasticsearchReporter engine, BulkTransport transport) {
+
+		super(builder.registry, "elasticsearch-reporter", reported(builder.filter, selfMetrics, builder.excludeSelfMetrics, builder.cardinalityGuard),
+				builder.rateUnit, builder.durationUnit);
+		this.filter = reported(builder.filter, selfMetrics, builder.excludeSelfMetrics, builder.cardinalityGuard);
+		this.cardinalityGuard = builder.cardinalityGuard;
+		if (null != cardinalityGuard) {
+			cardinalityGuard.countersReset(builder.resettable);
+		}
+		this.gaugeEvaluator = builder.gaugeEvaluator;
+		this.history = builder.history;
+		if (null != builder.history) {
+			builder.registry.addListener(builder.history);
+		}
+		this.engine = engine;
+		this.attached = new CopyOnWriteArrayList<>();
+
+		String _indexPrefix = Strings.isNullOrEmpty(builder.indexPrefix) ? "logstash-" : builder.indexPrefix;
 		if (!_indexPrefix.endsWith("-")) {
 			_indexPrefix += "-";
 		}
 		this.indexPrefix = _indexPrefix;
-		this.timestampFieldName = Strings.isNullOrEmpty(timestampFieldName) ? "@timestamp" : timestampFieldName;
-		this.metricPrefixName = Strings.isNullOrEmpty(metricPrefixName) ? "" : metricPrefixName;
+		this.timestampFieldName = Strings.isNullOrEmpty(builder.timestampFieldName) ? "@timestamp" : builder.timestampFieldName;
+		this.metricPrefixName = Strings.isNullOrEmpty(builder.metricPrefix) ? "" : builder.metricPrefix;
+		String hostname = builder.hostname;
+		if (Strings.isNullOrEmpty(hostname) && null != engine) {
+			hostname = engine.hostname;
+		}
 		if (Strings.isNullOrEmpty(hostname)) {
 			try {
 				InetAddress inetAddress = InetAddress.getLocalHost();
@@ -219,288 +684,1035 @@ public class ElasticsearchReporter extends ScheduledReporter {
 				hostname = "unknown-host";
 			}
 		}
-		this.ttl = ttl;
+		this.ttl = builder.ttl;
 		this.hostname = hostname;
-		this.timezoneId = null != timezoneId ? timezoneId : ZoneId.systemDefault();
+		this.timezoneId = null != builder.timezoneId ? ZoneId.of(builder.timezoneId) : ZoneId.systemDefault();
 		this.jsonFactory = new JsonFactory();
-		this.endpoint = Splitter.on(",").trimResults().omitEmptyStrings().splitToList(endpoint);
-		// Unsupported
-		this.bulkLimit = bulkLimit > 0 ? bulkLimit : DEFAULT_BULK_LIMIT;
-		this.nextHost = new AtomicInteger();
-		this.bulkCounter = new AtomicInteger();
-		this.buffer = new StringWriter();
-		this.additionalFields = null != additionalFields ? additionalFields : new HashMap<>();
-		this.enabled = enabled;
-		this.resettable = resettable;
+		// documents are separated by '\n' as NDJSON, not by the default root value separator.
+		this.jsonFactory.setRootValueSeparator(null);
+		this.transport = transport;
+		this.bulkLimit = builder.bulkLimit > 0 ? builder.bulkLimit : DEFAULT_BULK_LIMIT;
+		this.bulkSizeLimit = builder.bulkSizeLimit > 0 ? builder.bulkSizeLimit : DEFAULT_BULK_SIZE_LIMIT;
+		this.maxInFlightRequests = builder.maxInFlightRequests > 0 ? builder.maxInFlightRequests : Math.max(1, transport.getNodes().size());
+		this.async = builder.async;
+		this.enabled = builder.enabled;
+		this.resettable = builder.resettable;
+		// without async, report() waits for its own batches, so the queue only needs to keep every sender busy.
+		this.sender = null != engine ? engine.sender : new BulkSender("elasticsearch-reporter", this.maxInFlightRequests,
+				builder.async && builder.queueCapacity > 0 ? builder.queueCapacity : this.maxInFlightRequests,
+				builder.async ? builder.backpressurePolicy : BulkSender.BackpressurePolicy.BLOCK,
+				builder.async ? builder.backpressureTimeoutMillis : -1L,
+				Math.min(INITIAL_BULK_BUFFER_SIZE, this.bulkSizeLimit),
+				this::send);
+		this.spool = spool;
+		this.registry = builder.registry;
+		if (null == engine) {
+			selfMetrics.registerGauges(sender, spool);
+		}
+		this.encodeHistograms = builder.encodeHistograms;
+		if (null != engine) {
+			this.collectionPool = engine.collectionPool;
+		} else if (builder.collectionParallelism > 0) {
+			this.collectionPool = new ForkJoinPool(builder.collectionParallelism, pool -> {
+				final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("elasticsearch-reporter-collector-" + thread.getPoolIndex());
+				return thread;
+			}, null, false);
+		} else {
+			this.collectionPool = null;
+		}
+		this.collectionChunkSize = builder.collectionChunkSize > 0 ? builder.collectionChunkSize : DEFAULT_COLLECTION_CHUNK_SIZE;
+		this.encodedChunks = new ConcurrentLinkedQueue<>();
+		this.cycleBudgetNanos = TimeUnit.MILLISECONDS.toNanos(builder.cycleBudgetMillis);
+		this.selfMetrics = selfMetrics;
+		this.documentLayout = null != builder.documentLayout ? builder.documentLayout : DocumentLayout.PER_METRIC;
+		this.maxDocumentFields = builder.maxDocumentFields > 0 ? builder.maxDocumentFields : DocumentLayout.DEFAULT_MAX_FIELDS;
+		this.itemRetries = Math.max(0, builder.itemRetries);
+		this.itemRetryBackoffMillis = builder.itemRetryBackoffMillis > 0 ? builder.itemRetryBackoffMillis : DEFAULT_ITEM_RETRY_BACKOFF_MILLIS;
+		this.itemRetryMaxBackoffMillis = Math.max(this.itemRetryBackoffMillis, builder.itemRetryMaxBackoffMillis);
+		this.rollup = builder.rollup;
+		// the batches of an attached reporter go to the sinks of its engine.
+		this.sinks = null != engine ? Collections.emptyMap() : new LinkedHashMap<>(builder.sinks);
+		this.sinkSenders = new ArrayList<>(this.sinks.size());
+		this.sinks.forEach((name, sink) -> {
+			final BulkSender sinkSender = new BulkSender("elasticsearch-reporter-" + name, 1,
+					builder.sinkQueueCapacity > 0 ? builder.sinkQueueCapacity : DEFAULT_SINK_QUEUE_CAPACITY,
+					null != builder.sinkPolicy ? builder.sinkPolicy : BulkSender.BackpressurePolicy.DROP_OLDEST,
+					builder.backpressureTimeoutMillis, Math.min(INITIAL_BULK_BUFFER_SIZE, this.bulkSizeLimit), sink::write);
+			selfMetrics.registerSinkGauges(name, sinkSender);
+			sinkSenders.add(sinkSender);
+		});
+		if (builder.heartbeatMillis >= 0) {
+			this.reportedStates = new ReportedStateCache(builder.heartbeatMillis);
+			builder.registry.addListener(this.reportedStates);
+		} else {
+			this.reportedStates = null;
+		}
+		if (null != spool) {
+			final RateLimiter replayRateLimiter = RateLimiter.create(builder.spoolReplayRate > 0 ? builder.spoolReplayRate : DEFAULT_SPOOL_REPLAY_RATE);
+			final BulkBuffer replayBuffer = new BulkBuffer(INITIAL_BULK_BUFFER_SIZE);
+			this.replayExecutor = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("elasticsearch-reporter-replay").setDaemon(true).build());
+			// the live batches go first: the replay waits for an empty queue and a healthy node.
+			this.replayExecutor.scheduleWithFixedDelay(() -> spool.replay(replayBuffer,
+					this::replaySpooled,
+					() -> this.enabled && sender.getQueueSize() == 0 && transport.hasHealthyNode(),
+					replayRateLimiter), 1, 1, TimeUnit.SECONDS);
+		} else {
+			this.replayExecutor = null;
+		}
+		this.additionalFields = null != builder.additionalFields ? builder.additionalFields : new HashMap<>();
+		this.documentHeaders = new DocumentHeaderCache(jsonFactory, this.timestampFieldName,
+				this.metricPrefixName, this.hostname, this.additionalFields, this.ttl);
+		builder.registry.addListener(this.documentHeaders);
 		log.info("The elasticsearch-reporter was initialized. 'indexPrefix':{}, " +
 						"'timestampFieldName':{}, 'metricPrefixName':{}, 'hostname':{}, " +
 						"'ttl':{}, 'rateUnit':{}, 'durationUnit':{}, 'timezoneId':{}, " +
-						"'bulkLimit':{}, 'endpoint':{}",
+						"'bulkLimit':{}, 'bulkSizeLimit':{}, 'maxInFlightRequests':{}, 'async':{}, 'endpoint':{}",
 				this.indexPrefix, this.timestampFieldName, this.indexPrefix,
 				this.timestampFieldName, this.metricPrefixName, this.hostname,
-				this.ttl, rateUnit.name(), durationUnit.name(), this.timezoneId,
-				this.bulkLimit, endpoint);
+				this.ttl, builder.rateUnit.name(), builder.durationUnit.name(), this.timezoneId,
+				this.bulkLimit, this.bulkSizeLimit, this.maxInFlightRequests, this.async, transport.getNodes());
 
 	}
 
+	/**
+	 * @throws IllegalStateException When the reporter is attached to an engine, which reports it.
+	 */
+	@Override
+	public void start(long period, TimeUnit unit) {
+		if (null != engine) {
+			throw new IllegalStateException("The reporter is reported by the cycle of the reporter it is attached to.");
+		}
+		super.start(period, unit);
+	}
+
+	/**
+	 * Same as {@link ScheduledReporter#report()}, timing the collection of the metrics out of the
+	 * registry.
+	 */
+	@Override
+	public void report() {
+		synchronized (this) {
+			final long start = System.nanoTime();
+			if (null != cardinalityGuard) {
+				cardinalityGuard.beginCycle().forEach(prefix ->
+						selfMetrics.onCardinalityTripped(prefix, () -> cardinalityGuard.estimate(prefix)));
+			}
+			final SortedMap<String, Gauge> gauges = registry.getGauges(filter);
+			final SortedMap<String, Counter> counters = registry.getCounters(filter);
+			final SortedMap<String, Histogram> histograms = registry.getHistograms(filter);
+			final SortedMap<String, Meter> meters = registry.getMeters(filter);
+			final SortedMap<String, Timer> timers = registry.getTimers(filter);
+			collectNanos = System.nanoTime() - start;
+			report(gauges, counters, histograms, meters, timers);
+		}
+	}
+
+	/**
+	 * Writes the documents of the attached reporter into the batches of the cycle of its engine.
+	 */
+	private void reportTo(BulkChunks bulk) {
+		synchronized (this) {
+			// the cycle may have started before the reporter was stopped.
+			if (detached) {
+				return;
+			}
+			cycleBulk = bulk;
+			try {
+				report();
+			} finally {
+				cycleBulk = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the documents of the metrics, then the ones of the attached reporters, into the same
+	 * '_bulk' batches.
+	 */
 	@Override
 	public void report(SortedMap<String, Gauge> gauges,
 					   SortedMap<String, Counter> counters,
 					   SortedMap<String, Histogram> histograms,
 					   SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+		final long start = System.nanoTime();
+		long encoded = start;
+		if (null != cycleBulk) {
+			// the batches are sent by the engine, which times them.
+			try {
+				encode(cycleBulk, gauges, counters, histograms, meters, timers);
+			} catch (IOException | RuntimeException e) {
+				log.warn("Fail! The metric encoding.", e);
+				discard(cycleBulk);
+			}
+			selfMetrics.onCycle(collectNanos, System.nanoTime() - start, 0L);
+			collectNanos = 0;
+			return;
+		}
+		try (BulkChunks bulk = new BulkChunks()) {
+			try {
+				encode(bulk, gauges, counters, histograms, meters, timers);
+			} catch (IOException | RuntimeException e) {
+				log.warn("Fail! The metric encoding.", e);
+				bulk.discard();
+			}
+			for (ElasticsearchReporter reporter : attached) {
+				reporter.reportTo(bulk);
+			}
+			encoded = System.nanoTime();
+		} catch (IOException e) {
+			log.warn("Fail! The metric encoding.", e);
+		}
+		selfMetrics.onCycle(collectNanos, encoded - start, System.nanoTime() - encoded);
+		collectNanos = 0;
+	}
+
+	private static void discard(BulkChunks bulk) {
+		try {
+			bulk.discard();
+		} catch (IOException e) {
+			log.warn("Fail! Discarding the partly encoded document.", e);
+		}
+	}
 
+	private void encode(BulkChunks bulk,
+						SortedMap<String, Gauge> gauges,
+						SortedMap<String, Counter> counters,
+						SortedMap<String, Histogram> histograms,
+						SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) throws IOException {
 		ZonedDateTime zdt = ZonedDateTime.ofInstant(Instant.now(), timezoneId);
-		String timestamp = zdt.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+		final SerializableString timestamp = new SerializedString(zdt.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
 
 		final String index = indexPrefix + zdt.getYear() + "."
 				+ MONTH_AND_DAY_FORMAT.format(zdt.getMonthValue()) + "."
 				+ MONTH_AND_DAY_FORMAT.format(zdt.getDayOfMonth());
 
-		gauges.forEach((k, v) -> reportGauge(index, timestamp, k, v));
-		counters.forEach((k, v) -> reportCounter(index, timestamp, k, v));
-		meters.forEach((k, v) -> reportMeter(index, timestamp, k, v));
-		timers.forEach((k, v) -> reportTimer(index, timestamp, k, v));
+		if (null != reportedStates) {
+			reportedStates.beginCycle(zdt.toInstant().toEpochMilli());
+		}
+		if (null != history) {
+			history.beginCycle(zdt.toInstant().toEpochMilli());
+		}
 
-		try {
-			if (enabled) {
-				sendBulkRequest();
+		final long deadline = System.nanoTime() + cycleBudgetNanos;
+		if (null != gaugeEvaluator) {
+			gaugeEvaluator.evaluate(gauges, selfMetrics);
+		}
+		int skipped = 0;
+		if (documentLayout != DocumentLayout.PER_METRIC) {
+			final SortedMap<String, TypedMetric<?>> metrics =
+					nameOrdered(gauges, counters, histograms, meters, timers);
+			if (null == collectionPool) {
+				skipped += collect(bulk, index, timestamp, metrics.entrySet(), TypedMetric.WRITER, deadline);
 			} else {
-				sendBulkRequestDummy();
+				final List<ForkJoinTask<EncodedChunk>> tasks = new ArrayList<>();
+				fork(tasks, index, timestamp, metrics, TypedMetric.WRITER, deadline);
+				skipped += merge(bulk, tasks);
+			}
+		} else if (null == collectionPool) {
+			skipped += collect(bulk, index, timestamp, gauges.entrySet(), this::reportGauge, deadline);
+			skipped += collect(bulk, index, timestamp, counters.entrySet(), this::reportCounter, deadline);
+			skipped += collect(bulk, index, timestamp, histograms.entrySet(), this::reportHistogram, deadline);
+			skipped += collect(bulk, index, timestamp, meters.entrySet(), this::reportMeter, deadline);
+			skipped += collect(bulk, index, timestamp, timers.entrySet(), this::reportTimer, deadline);
+		} else {
+			final List<ForkJoinTask<EncodedChunk>> tasks = new ArrayList<>();
+			fork(tasks, index, timestamp, gauges, this::reportGauge, deadline);
+			fork(tasks, index, timestamp, counters, this::reportCounter, deadline);
+			fork(tasks, index, timestamp, histograms, this::reportHistogram, deadline);
+			fork(tasks, index, timestamp, meters, this::reportMeter, deadline);
+			fork(tasks, index, timestamp, timers, this::reportTimer, deadline);
+			skipped += merge(bulk, tasks);
+		}
+		// the next documents of the batch may be the ones of another reporter.
+		bulk.closeNested();
+		if (skipped > 0) {
+			selfMetrics.onSkipped(skipped);
+			log.warn("The report cycle ran out of its budget of {}ms, {} metrics were skipped.",
+					TimeUnit.NANOSECONDS.toMillis(cycleBudgetNanos), skipped);
+		}
+	}
+
+	/**
+	 * @return The metrics of every type in {@link DocumentLayout#NAME_ORDER}, for the compact layouts.
+	 */
+	private SortedMap<String, TypedMetric<?>> nameOrdered(SortedMap<String, Gauge> gauges,
+														  SortedMap<String, Counter> counters,
+														  SortedMap<String, Histogram> histograms,
+														  SortedMap<String, Meter> meters,
+														  SortedMap<String, Timer> timers) {
+		final SortedMap<String, TypedMetric<?>> metrics = new TreeMap<>(DocumentLayout.NAME_ORDER);
+		gauges.forEach((name, gauge) -> metrics.put(name, new TypedMetric<>(gauge, this::reportGauge)));
+		counters.forEach((name, counter) -> metrics.put(name, new TypedMetric<>(counter, this::reportCounter)));
+		histograms.forEach((name, histogram) -> metrics.put(name, new TypedMetric<>(histogram, this::reportHistogram)));
+		meters.forEach((name, meter) -> metrics.put(name, new TypedMetric<>(meter, this::reportMeter)));
+		timers.forEach((name, timer) -> metrics.put(name, new TypedMetric<>(timer, this::reportTimer)));
+		return metrics;
+	}
+
+	/**
+	 * Writes the metrics in order until the cycle budget runs out.
+	 *
+	 * @return The number of skipped metrics.
+	 */
+	private <T> int collect(DocumentWriter writer, String index, SerializableString timestamp,
+							Collection<Map.Entry<String, T>> metrics, MetricWriter<T> metricWriter,
+							long deadline) throws IOException {
+		int collected = 0;
+		for (Map.Entry<String, T> entry : metrics) {
+			if (cycleBudgetNanos > 0 && System.nanoTime() - deadline > 0) {
+				return metrics.size() - collected;
+			}
+			metricWriter.write(writer, index, timestamp, entry.getKey(), entry.getValue());
+			collected++;
+		}
+		return 0;
+	}
+
+	private <T> void fork(List<ForkJoinTask<EncodedChunk>> tasks, String index, SerializableString timestamp,
+						  SortedMap<String, T> metrics, MetricWriter<T> metricWriter, long deadline) {
+		final List<Map.Entry<String, T>> entries = new ArrayList<>(metrics.entrySet());
+		for (int from = 0; from < entries.size(); from += collectionChunkSize) {
+			final List<Map.Entry<String, T>> chunk =
+					entries.subList(from, Math.min(entries.size(), from + collectionChunkSize));
+			tasks.add(collectionPool.submit(() -> {
+				EncodedChunk encoded = encodedChunks.poll();
+				if (null == encoded) {
+					encoded = new EncodedChunk();
+				}
+				encoded.skipped = collect(encoded, index, timestamp, chunk, metricWriter, deadline);
+				encoded.finish();
+				return encoded;
+			}));
+		}
+	}
+
+	/**
+	 * Appends the encoded chunks to the '_bulk' batches in the order they were forked.
+	 *
+	 * @return The number of skipped metrics.
+	 */
+	private int merge(BulkChunks bulk, List<ForkJoinTask<EncodedChunk>> tasks) throws IOException {
+		int skipped = 0;
+		for (ForkJoinTask<EncodedChunk> task : tasks) {
+			final EncodedChunk encoded;
+			try {
+				encoded = task.join();
+			} catch (RuntimeException e) {
+				log.warn("Fail! The metric encoding.", e);
+				continue;
+			}
+			try {
+				skipped += encoded.skipped;
+				bulk.append(encoded);
+			} finally {
+				encoded.reset();
+				encodedChunks.offer(encoded);
 			}
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return The filter of the metrics actually reported.
+	 */
+	private static MetricFilter reported(MetricFilter filter, ReporterMetrics selfMetrics, boolean excludeSelfMetrics,
+										 CardinalityGuard cardinalityGuard) {
+		final MetricFilter reported = excludeSelfMetrics ? selfMetrics.excluding(filter) : filter;
+		return null != cardinalityGuard ? cardinalityGuard.filter(reported) : reported;
+	}
+
+	/**
+	 * Stops the reporter, and the reporters attached to it. An attached reporter leaves its engine,
+	 * whose threads and connections are left to it.
+	 */
+	@Override
+	public void stop() {
+		try {
+			super.stop();
 		} finally {
-			this.buffer = new StringWriter();
+			if (null != engine) {
+				synchronized (this) {
+					detached = true;
+					engine.attached.remove(this);
+				}
+			}
+			attached.forEach(ElasticsearchReporter::stop);
+			if (null != replayExecutor) {
+				replayExecutor.shutdownNow();
+			}
+			if (null != reportedStates) {
+				registry.removeListener(reportedStates);
+			}
+			registry.removeListener(documentHeaders);
+			if (null != history) {
+				registry.removeListener(history);
+			}
+			selfMetrics.remove();
+			if (null != collectionPool && null == engine) {
+				collectionPool.shutdownNow();
+			}
+			if (null != rollup) {
+				rollup.close();
+			}
+			if (null != cardinalityGuard) {
+				cardinalityGuard.close();
+			}
+			if (null != gaugeEvaluator) {
+				gaugeEvaluator.close();
+			}
+			if (null == engine) {
+				sender.close();
+				transport.close();
+			}
+			sinkSenders.forEach(BulkSender::close);
+			sinks.forEach((name, sink) -> {
+				try {
+					sink.close();
+				} catch (IOException e) {
+					log.warn("Fail! Closing the sink '{}'. {}", name, e.toString());
+				}
+			});
 		}
 	}
 
-	private void reportTimer(String index, String timestamp, String name,
-							 Timer timer) {
-		try (StringWriter writer = new StringWriter()) {
-			JsonGenerator json = createAndInitJsonGenerator(writer, timestamp, name);
+	public BulkSender getSender() {
+		return sender;
+	}
+
+	public BulkSpool getSpool() {
+		return spool;
+	}
+
+	public BulkTransport getTransport() {
+		return transport;
+	}
 
-			final Snapshot snapshot = timer.getSnapshot();
+	public MetricHistory getHistory() {
+		return history;
+	}
 
-			json.writeNumberField("max", convertDuration(snapshot.getMax()));
-			json.writeNumberField("mean", convertDuration(snapshot.getMean()));
-			json.writeNumberField("min", convertDuration(snapshot.getMin()));
-			json.writeNumberField("stddev", convertDuration(snapshot.getStdDev()));
+	private void reportTimer(DocumentWriter writer, String index, SerializableString timestamp, String name,
+							 Timer timer) throws IOException {
+		if (!changed(name, timer.getCount())) {
+			return;
+		}
+		final Snapshot snapshot = snapshot(name, timer);
+
+		JsonGenerator json = writeDocumentHeader(writer, index, "timer", timestamp, name);
+		final double max = convertDuration(snapshot.getMax());
+		final double mean = convertDuration(snapshot.getMean());
+		double p99 = Double.NaN;
+		json.writeNumberField("max", max);
+		json.writeNumberField("mean", mean);
+		json.writeNumberField("min", convertDuration(snapshot.getMin()));
+		json.writeNumberField("stddev", convertDuration(snapshot.getStdDev()));
+		if (encodeHistograms && snapshot instanceof HdrSnapshot) {
+			writeHistogramField(writer, json, (HdrSnapshot)snapshot);
+		} else {
+			p99 = convertDuration(snapshot.get99thPercentile());
 			json.writeNumberField("p50", convertDuration(snapshot.getMedian()));
 			json.writeNumberField("p75", convertDuration(snapshot.get75thPercentile()));
 			json.writeNumberField("p95", convertDuration(snapshot.get95thPercentile()));
 			json.writeNumberField("p98", convertDuration(snapshot.get98thPercentile()));
-			json.writeNumberField("p99", convertDuration(snapshot.get99thPercentile()));
+			json.writeNumberField("p99", p99);
 			json.writeNumberField("p999", convertDuration(snapshot.get999thPercentile()));
-			json.writeNumberField("count", timer.getCount());
-			json.writeNumberField("m1_rate", convertRate(timer.getOneMinuteRate()));
-			json.writeNumberField("m5_rate", convertRate(timer.getFiveMinuteRate()));
-			json.writeNumberField("m15_rate", convertRate(timer.getFifteenMinuteRate()));
-			json.writeNumberField("mean_rate", convertRate(timer.getMeanRate()));
-
-			json.writeEndObject();
-			json.flush();
+		}
+		json.writeNumberField("count", timer.getCount());
+		json.writeNumberField("m1_rate", convertRate(timer.getOneMinuteRate()));
+		json.writeNumberField("m5_rate", convertRate(timer.getFiveMinuteRate()));
+		json.writeNumberField("m15_rate", convertRate(timer.getFifteenMinuteRate()));
+		json.writeNumberField("mean_rate", convertRate(timer.getMeanRate()));
+		writeDocumentFooter(writer, json);
+		if (null != history) {
+			history.append(name, MetricHistory.Type.TIMER, timer.getCount(), mean, p99, max);
+		}
+	}
 
-			addReportBuffer(index, "timer", writer.toString());
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+	private void reportMeter(DocumentWriter writer, String index, SerializableString timestamp, String name,
+							 Metered meter) throws IOException {
+		// the interval is taken before the rates are read, they advance on the reset.
+		final long delta = meter instanceof Resettable ? ((Resettable)meter).getAndReset() : 0;
+		if (!changed(name, meter.getCount())) {
+			return;
+		}
+		JsonGenerator json = writeDocumentHeader(writer, index, "meter", timestamp, name);
+		json.writeNumberField("m1_rate", convertRate(meter.getOneMinuteRate()));
+		json.writeNumberField("m5_rate", convertRate(meter.getFiveMinuteRate()));
+		json.writeNumberField("m15_rate", convertRate(meter.getFifteenMinuteRate()));
+		json.writeNumberField("mean_rate", convertRate(meter.getMeanRate()));
+		json.writeNumberField("count", meter.getCount());
+		if (meter instanceof Resettable) {
+			json.writeNumberField("delta", delta);
+		}
+		writeDocumentFooter(writer, json);
+		if (null != history) {
+			history.append(name, MetricHistory.Type.METER, meter.getCount(), convertRate(meter.getOneMinuteRate()));
 		}
 	}
 
-	private void reportMeter(String index, String timestamp, String name,
-							 Metered meter) {
-		try (StringWriter writer = new StringWriter()) {
-			JsonGenerator json = createAndInitJsonGenerator(writer, timestamp, name);
+	private void reportHistogram(DocumentWriter writer, String index, SerializableString timestamp, String name,
+								 Histogram histogram) throws IOException {
+		if (!changed(name, histogram.getCount())) {
+			return;
+		}
+		final Snapshot snapshot = snapshot(name, histogram);
+
+		// the values of a histogram are not durations, they are reported as they were recorded.
+		JsonGenerator json = writeDocumentHeader(writer, index, "histogram", timestamp, name);
+		final long max = snapshot.getMax();
+		final double mean = snapshot.getMean();
+		double p99 = Double.NaN;
+		json.writeNumberField("max", max);
+		json.writeNumberField("mean", mean);
+		json.writeNumberField("min", snapshot.getMin());
+		json.writeNumberField("stddev", snapshot.getStdDev());
+		if (encodeHistograms && snapshot instanceof HdrSnapshot) {
+			writeHistogramField(writer, json, (HdrSnapshot)snapshot);
+		} else {
+			p99 = snapshot.get99thPercentile();
+			json.writeNumberField("p50", snapshot.getMedian());
+			json.writeNumberField("p75", snapshot.get75thPercentile());
+			json.writeNumberField("p95", snapshot.get95thPercentile());
+			json.writeNumberField("p98", snapshot.get98thPercentile());
+			json.writeNumberField("p99", p99);
+			json.writeNumberField("p999", snapshot.get999thPercentile());
+		}
+		json.writeNumberField("count", histogram.getCount());
+		writeDocumentFooter(writer, json);
+		if (null != history) {
+			history.append(name, MetricHistory.Type.HISTOGRAM, histogram.getCount(), mean, p99, max);
+		}
+	}
 
-			json.writeNumberField("m1_rate", convertRate(meter.getOneMinuteRate()));
-			json.writeNumberField("m5_rate", convertRate(meter.getFiveMinuteRate()));
-			json.writeNumberField("m15_rate", convertRate(meter.getFifteenMinuteRate()));
-			json.writeNumberField("mean_rate", convertRate(meter.getMeanRate()));
-			json.writeNumberField("count", meter.getCount());
+	private void reportCounter(DocumentWriter writer, String index, SerializableString timestamp, String name,
+							   Counter counter) throws IOException {
+		final boolean interval = counter instanceof Resettable;
+		final long count = interval ? ((Resettable)counter).getAndReset() : counter.getCount();
+		// a resettable counter reports the events of its interval, any of them is a change.
+		if (!changed(name, count) && !((resettable || interval) && count != 0)) {
+			return;
+		}
 
-			json.writeEndObject();
-			json.flush();
+		JsonGenerator json = writeDocumentHeader(writer, index, "counter", timestamp, name);
+		json.writeNumberField("count", count);
+		writeDocumentFooter(writer, json);
+		if (null != history) {
+			history.append(name, MetricHistory.Type.COUNTER, count);
+		}
 
-			addReportBuffer(index, "meter", writer.toString());
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+		if (resettable && !interval) {
+			counter.dec(count);
 		}
 	}
 
-	private void reportHistogram(String index, String timestamp, String name,
-								 Histogram histogram) {
-		try (StringWriter writer = new StringWriter()) {
-			JsonGenerator json = createAndInitJsonGenerator(writer, timestamp, name);
+	/**
+	 * @return The values of the report interval merged by the rollup, or the snapshot of the metric
+	 * when it is not sampled.
+	 */
+	private Snapshot snapshot(String name, Sampling sampling) {
+		final Snapshot rolledUp = null != rollup ? rollup.snapshot(name) : null;
+		return null != rolledUp ? rolledUp : HdrHistogramReservoir.intervalSnapshot(sampling);
+	}
 
-			final Snapshot snapshot = histogram.getSnapshot();
+	private void reportGauge(DocumentWriter writer, String index, SerializableString timestamp, String name,
+							 Gauge gauge) throws IOException {
+		if (null != rollup) {
+			final MetricRollup.GaugeWindow window = rollup.gaugeWindow(name);
+			if (null != window) {
+				reportGaugeWindow(writer, index, timestamp, name, window);
+				return;
+			}
+		}
 
-			json.writeNumberField("max", convertDuration(snapshot.getMax()));
-			json.writeNumberField("mean", convertDuration(snapshot.getMean()));
-			json.writeNumberField("min", convertDuration(snapshot.getMin()));
-			json.writeNumberField("stddev", convertDuration(snapshot.getStdDev()));
-			json.writeNumberField("p50", convertDuration(snapshot.getMedian()));
-			json.writeNumberField("p75", convertDuration(snapshot.get75thPercentile()));
-			json.writeNumberField("p95", convertDuration(snapshot.get95thPercentile()));
-			json.writeNumberField("p98", convertDuration(snapshot.get98thPercentile()));
-			json.writeNumberField("p99", convertDuration(snapshot.get99thPercentile()));
-			json.writeNumberField("p999", convertDuration(snapshot.get999thPercentile()));
-			json.writeNumberField("count", histogram.getCount());
+		Object value;
+		long staleMillis = 0L;
+		if (null != gaugeEvaluator) {
+			final GaugeEvaluator.Entry evaluated = gaugeEvaluator.get(name);
+			if (null == evaluated) {
+				return;
+			}
+			value = evaluated.getValue();
+			if (evaluated.isStale()) {
+				staleMillis = evaluated.getAgeMillis();
+			}
+		} else {
+			value = gauge.getValue();
+		}
+		if (value == null) {
+			return;
+		}
+		if (value instanceof Number && !changed(name, value instanceof Float || value instanceof Double
+				? Double.doubleToLongBits(((Number)value).doubleValue()) : ((Number)value).longValue())) {
+			return;
+		}
 
-			json.writeEndObject();
-			json.flush();
+		final JsonGenerator json;
+
+		if (value instanceof Float) {
+			json = writeDocumentHeader(writer, index, "gauge", timestamp, name);
+			json.writeNumberField("floatValue", (Float)value);
+		} else if (value instanceof Double) {
+			json = writeDocumentHeader(writer, index, "gauge", timestamp, name);
+			json.writeNumberField("doubleValue", (Double)value);
+		} else if (value instanceof Byte) {
+			// UNSUPPORTED
+			// json.writeNumberField("byteValue", ((Byte) value).intValue());
+			return;
+		} else if (value instanceof Short) {
+			json = writeDocumentHeader(writer, index, "gauge", timestamp, name);
+			json.writeNumberField("shortValue", (Short)value);
+		} else if (value instanceof Integer) {
+			json = writeDocumentHeader(writer, index, "gauge", timestamp, name);
+			json.writeNumberField("intValue", (Integer)value);
+		} else if (value instanceof Long) {
+			json = writeDocumentHeader(writer, index, "gauge", timestamp, name);
+			json.writeNumberField("longValue", (Long)value);
+		} else {
+			// UNSUPPORTED
+			log.debug("A skip {} field, value={}", metricName(name), value.toString());
+			return;
+		}
+		if (staleMillis > 0) {
+			json.writeNumberField("staleMillis", staleMillis);
+		}
+
+		writeDocumentFooter(writer, json);
+		if (null != history) {
+			history.append(name, MetricHistory.Type.GAUGE, ((Number)value).doubleValue());
+		}
+	}
 
-			addReportBuffer(index, "histogram", writer.toString());
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+	private void reportGaugeWindow(DocumentWriter writer, String index, SerializableString timestamp, String name,
+								   MetricRollup.GaugeWindow window) throws IOException {
+		if (!changed(name, Double.doubleToLongBits(window.getSum()))) {
+			return;
 		}
+		JsonGenerator json = writeDocumentHeader(writer, index, "gauge", timestamp, name);
+		json.writeNumberField("min", window.getMin());
+		json.writeNumberField("max", window.getMax());
+		json.writeNumberField("sum", window.getSum());
+		json.writeNumberField("count", window.getCount());
+		json.writeNumberField("last", window.getLast());
+		writeDocumentFooter(writer, json);
+		if (null != history) {
+			history.append(name, MetricHistory.Type.GAUGE, window.getLast());
+		}
+	}
+
+	private void writeHistogramField(DocumentWriter writer, JsonGenerator json, HdrSnapshot snapshot)
+			throws IOException {
+		final ByteBuffer histogramBuffer = writer.histogramBuffer(snapshot.getNeededByteBufferCapacity());
+		final int length = snapshot.encodeInto(histogramBuffer);
+		json.writeFieldName("hdr");
+		json.writeBinary(histogramBuffer.array(), 0, length);
 	}
 
-	private void reportCounter(String index, String timestamp, String name,
-							   Counter counter) {
-		try (StringWriter writer = new StringWriter()) {
-			JsonGenerator json = createAndInitJsonGenerator(writer, timestamp, name);
+	private boolean changed(String name, long value) {
+		return null == reportedStates || reportedStates.update(name, value);
+	}
 
-			long count = counter.getCount();
-			json.writeNumberField("count", count);
-			json.writeEndObject();
-			json.flush();
+	private JsonGenerator createJsonGenerator(final OutputStream out) throws IOException {
+		JsonGenerator gen = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+		gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		return gen;
+	}
 
-			if (resettable) {
-				counter.dec(count);
+	/**
+	 * Writes the bulk action line and opens the metric document with its common fields, all of them
+	 * but the timestamp pre-encoded.
+	 */
+	private JsonGenerator writeDocumentHeader(DocumentWriter writer, String index, String type,
+											  SerializableString timestamp, String name) throws IOException {
+		if (documentLayout != DocumentLayout.PER_METRIC) {
+			return writeNestedHeader(writer, index, timestamp, name);
+		}
+		final JsonGenerator json = writer.generator();
+		json.writeRaw(documentHeaders.actionLine(index, type));
+		json.writeStartObject();
+		json.writeFieldName(documentHeaders.timestampFieldName()); // elasticsearch must be mappings `date` type.
+		json.writeString(timestamp);
+		json.writeRaw(documentHeaders.header(name));
+		return json;
+	}
+
+	private void writeDocumentFooter(DocumentWriter writer, JsonGenerator json) throws IOException {
+		if (documentLayout != DocumentLayout.PER_METRIC) {
+			if (writer.nested.endMetric(json, maxDocumentFields)) {
+				writer.closeNested();
 			}
+			return;
+		}
+		json.writeEndObject();
+		json.writeRaw('\n');
+		writer.documentWritten();
+	}
 
-			addReportBuffer(index, "counter", writer.toString());
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+	/**
+	 * Opens the objects of the metric name in the current compact document, starting a new document
+	 * for the first metric or for a new {@link DocumentLayout#PER_PREFIX} group.
+	 */
+	private JsonGenerator writeNestedHeader(DocumentWriter writer, String index, SerializableString timestamp,
+											String name) throws IOException {
+		final DocumentHeaderCache.MetricPath path = documentHeaders.path(name);
+		final NestedDocument document = writer.nested;
+		if (document.isOpen() && documentLayout == DocumentLayout.PER_PREFIX
+				&& !document.group().equals(path.getGroup())) {
+			writer.closeNested();
+		}
+		// the generator changes when closing the document has completed a batch.
+		final JsonGenerator json = writer.generator();
+		if (!document.isOpen()) {
+			json.writeRaw(documentHeaders.actionLine(index, "metrics"));
+			json.writeStartObject();
+			json.writeFieldName(documentHeaders.timestampFieldName());
+			json.writeString(timestamp);
+			json.writeRaw(documentHeaders.hostHeader());
+			if (documentLayout == DocumentLayout.PER_PREFIX) {
+				json.writeStringField("@prefix", path.getGroup());
+			}
+			document.open(path.getGroup());
 		}
+		document.beginMetric(json, path.getSegments());
+		return json;
+	}
+
+	private String metricName(String... name) {
+		return MetricRegistry.name(this.metricPrefixName, name);
 	}
 
-	private void reportGauge(String index, String timestamp, String name,
-							 Gauge gauge) {
+	private void send(BulkBuffer bulk) throws IOException {
+		selfMetrics.onBulk(bulk);
+		if (enabled) {
+			try {
+				sendBulkRequest(bulk, transport);
+			} catch (BulkRejectedException e) {
+				// sending it again would be rejected as well.
+				throw e;
+			} catch (IOException e) {
+				if (null != spool && spool.append(bulk)) {
+					log.warn("Fail! The metric reporting to Elasticsearch, the batch was spooled. {}", e.toString());
+					return;
+				}
+				throw e;
+			}
+		} else if (sinks.isEmpty()) {
+			sendBulkRequestDummy(bulk);
+		}
+	}
 
-		Object value = gauge.getValue();
-		if (value == null) {
-			return;
+	/**
+	 * Sends a spooled batch. A batch rejected as a whole is dropped from the spool, it would block the
+	 * replay of the next ones.
+	 */
+	private void replaySpooled(BulkBuffer bulk) throws IOException {
+		try {
+			sendBulkRequest(bulk, transport);
+		} catch (BulkRejectedException e) {
+			log.warn("Fail! A spooled batch was dropped. {}", e.getMessage());
 		}
+	}
 
-		try (StringWriter writer = new StringWriter()) {
-			JsonGenerator json = createAndInitJsonGenerator(writer, timestamp, name);
+	/**
+	 * Logs a preview of some batches of a disabled reporter without sinks, rather than decoding every
+	 * one of them.
+	 */
+	protected void sendBulkRequestDummy(BulkBuffer bulk) {
+		disabledPreview.write(bulk);
+	}
 
-			if (value instanceof Float) {
-				json.writeNumberField("floatValue", (Float)value);
-			} else if (value instanceof Double) {
-				json.writeNumberField("doubleValue", (Double)value);
-			} else if (value instanceof Byte) {
-				// UNSUPPORTED
-				// json.writeNumberField("byteValue", ((Byte) value).intValue());
+	/**
+	 * Sends a batch, then resends the items Elasticsearch rejected in it with backoff.
+	 *
+	 * @throws IOException           When the request was not accepted, or some items were still rejected
+	 *                               after the last retry. The batch then only holds the rejected items.
+	 * @throws BulkRejectedException When the request was rejected with another status than 2xx, 429 or
+	 *                               5xx, such as 400 or 413. Its documents are counted as dropped.
+	 */
+	protected void sendBulkRequest(BulkBuffer bulk, BulkTransport transport) throws IOException {
+		for (int retry = 0; ; retry++) {
+			// Request to 'elasticsearch' bulk API. a.k.a: http://localhost:9200/_bulk
+			final BulkResponse response = transport.send(bulk);
+			final int status = response.getStatus();
+			if (status == 429 || status >= 500) {
+				throw new IOException("The bulk request was not accepted, status=" + status);
+			}
+			if (status / 100 != 2) {
+				selfMetrics.onItemsDropped(bulk.documents());
+				throw new BulkRejectedException("The bulk request was rejected, status=" + status + ", "
+						+ bulk.documents() + " documents were dropped");
+			}
+			if (response.getFailures() == 0) {
 				return;
-			} else if (value instanceof Short) {
-				json.writeNumberField("shortValue", (Short)value);
-			} else if (value instanceof Integer) {
-				json.writeNumberField("intValue", (Integer)value);
-			} else if (value instanceof Long) {
-				json.writeNumberField("longValue", (Long)value);
-			} else {
-				// UNSUPPORTED
-				json.writeStringField("strings", value.toString());
-				log.debug("A skip {} field, value={}", metricName(name), value.toString());
+			}
+			selfMetrics.onItemFailures(response);
+			final int rejected = retainRetryable(bulk, response);
+			if (rejected == 0) {
 				return;
 			}
-
-			json.writeEndObject();
-			json.flush();
-
-			addReportBuffer(index, "gauge", writer.toString());
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			if (retry >= itemRetries) {
+				throw new IOException(rejected + " items of the bulk request were rejected after "
+						+ retry + " retries, " + response.getFailureCounts());
+			}
+			selfMetrics.onItemRetries(rejected);
+			try {
+				TimeUnit.MILLISECONDS.sleep(backoffMillis(retry));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while retrying the rejected bulk items");
+			}
 		}
 	}
 
-	private JsonGenerator createAndInitJsonGenerator(final Writer sw,
-													 String timestamp, String name) throws IOException {
-		JsonGenerator gen = jsonFactory.createGenerator(sw);
-		gen.writeStartObject();
-		gen.writeStringField(timestampFieldName, timestamp); // elasticsearch must be mappings `date` type.
-		gen.writeStringField("@name", metricName(name));
-		gen.writeStringField("hostname", this.hostname);
-		if (null != additionalFields) {
-			additionalFields.forEach((k, v) -> {
-				try {
-					gen.writeStringField(k, v);
-				} catch (Exception e) {
-				}
-			});
+	/**
+	 * Keeps only the items of the batch which may be accepted when resent, and drops the others.
+	 *
+	 * @return The number of items kept.
+	 */
+	private int retainRetryable(BulkBuffer bulk, BulkResponse response) {
+		final int[] positions = new int[response.getFailures()];
+		int retryable = 0;
+		for (int i = 0; i < response.getFailures(); i++) {
+			if (response.isRetryable(i)) {
+				positions[retryable++] = response.getFailedItem(i);
+			}
 		}
-		return gen;
+		final int dropped = response.getFailures() - retryable;
+		if (dropped > 0) {
+			selfMetrics.onItemsDropped(dropped);
+			log.warn("{} items of a bulk request were dropped by Elasticsearch: {}",
+					dropped, response.getFailureCounts());
+		}
+		if (retryable > 0) {
+			bulk.retain(positions, retryable);
+		}
+		return retryable;
 	}
 
-	private String metricName(String... name) {
-		return MetricRegistry.name(this.metricPrefixName, name);
+	/**
+	 * @return The exponential backoff of the retry with equal jitter: a random delay between half and
+	 * all of the backoff, so the reporters rejected by the same busy node do not retry in lockstep.
+	 */
+	private long backoffMillis(int retry) {
+		final long backoff = Math.min(itemRetryMaxBackoffMillis, itemRetryBackoffMillis << Math.min(retry, 30));
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
 	}
 
-	protected void addReportBuffer(String index, String type, String json) {
-		if (this.ttl > 0) {
-			this.buffer.append(String.format(ES_BULK_INDEX_WITH_TTL_RAW_FORMAT, index, type, this.ttl.toString()));
-		} else {
-			this.buffer.append(String.format(ES_BULK_INDEX_RAW_FORMAT, index, type));
+	/**
+	 * A batch refused as a whole by Elasticsearch, which is dropped rather than spooled.
+	 */
+	private static final class BulkRejectedException extends IOException {
+		BulkRejectedException(String message) {
+			super(message);
 		}
-		this.buffer.append("\n").append(json).append("\n");
+	}
 
+	@FunctionalInterface
+	private interface MetricWriter<T> {
+		void write(DocumentWriter writer, String index, SerializableString timestamp, String name, T metric)
+				throws IOException;
 	}
 
-	protected void sendBulkRequestDummy() {
-		final String sBuf = buffer.toString();
-		if (Strings.isNullOrEmpty(sBuf)) {
-			log.info("!! The metrics is blank !!");
-			return;
+	/**
+	 * A metric with the method writing its document, to write the metrics of every type in one pass.
+	 */
+	private static final class TypedMetric<T> {
+		static final MetricWriter<TypedMetric<?>> WRITER = (writer, index, timestamp, name, typed) ->
+				typed.write(writer, index, timestamp, name);
+
+		private final T metric;
+		private final MetricWriter<T> writer;
+
+		TypedMetric(T metric, MetricWriter<T> writer) {
+			this.metric = metric;
+			this.writer = writer;
+		}
+
+		void write(DocumentWriter documentWriter, String index, SerializableString timestamp, String name)
+				throws IOException {
+			writer.write(documentWriter, index, timestamp, name, metric);
 		}
-		log.info("=========== Elasticsearch '/_bulk' \n{}", sBuf);
 	}
 
-	protected void sendBulkRequest() {
-		// Request to 'elasticsearch' bulk API. a.k.a: http://localhost:9200/_bulk
+	/**
+	 * The target of the encoded metric documents.
+	 */
+	private abstract static class DocumentWriter {
+		private final NestedDocument nested = new NestedDocument();
+		private ByteBuffer histogramBuffer;
 
-		HttpURLConnection connection = null;
-		boolean connected = false;
+		abstract JsonGenerator generator() throws IOException;
 
-		for (int i = 0; i < endpoint.size(); i++) { // Round-Robin
-			int hostIndex = nextHost.get();
-			nextHost.set((nextHost.get() == endpoint.size() - 1) ? 0 : nextHost.get() + 1);
-			try {
-				URL templateUrl = new URL("http://" + endpoint.get(hostIndex) + "/_bulk");
-				log.info("Request to Elasticsearch '{}'", templateUrl.toString());
-				connection = (HttpURLConnection)templateUrl.openConnection();
-				connection.setRequestMethod("POST");
-				connection.setConnectTimeout(3000); //3sec
-				connection.setUseCaches(false);
-				connection.setDoOutput(true);
-				connection.connect();
-				connected = true;
-				break;
-			} catch (IOException e) {
-				log.error("Error connecting to {}: {}", endpoint.get(hostIndex), e);
+		abstract void documentWritten() throws IOException;
+
+		/**
+		 * Completes the compact document being written, if any.
+		 */
+		void closeNested() throws IOException {
+			if (nested.isOpen()) {
+				nested.close(generator());
+				documentWritten();
 			}
 		}
 
-		if (connected) {
-			try {
-				OutputStreamWriter printWriter = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-				printWriter.write(buffer.toString());
-				printWriter.flush();
-				printWriter.close();
-				closeConnection(connection);
+		/**
+		 * Forgets the compact document being written, if any.
+		 */
+		void discardNested() {
+			nested.discard();
+		}
 
-			} catch (Exception e) {
-				log.warn("Fail! The metric reporting to Elasticsearch.", e);
+		/**
+		 * @return A cleared scratch buffer of at least {@code capacity} bytes.
+		 */
+		ByteBuffer histogramBuffer(int capacity) {
+			if (null == histogramBuffer || histogramBuffer.capacity() < capacity) {
+				histogramBuffer = ByteBuffer.allocate(Math.max(INITIAL_HISTOGRAM_BUFFER_SIZE, capacity));
 			}
+			histogramBuffer.clear();
+			return histogramBuffer;
 		}
 	}
 
-	private void closeConnection(HttpURLConnection connection)
-			throws IOException {
-		connection.getOutputStream().close();
-		connection.disconnect();
-		if (connection.getResponseCode() != 200) {
-			log.warn("Reporting returned code {} {}: {}",
-					connection.getResponseCode(),
-					connection.getResponseMessage());
+	/**
+	 * The documents of one chunk of metrics encoded on the collection pool, with the offset where each
+	 * of them ends so that {@link BulkChunks#append(EncodedChunk)} can split them into batches.
+	 * The chunks are pooled and keep their capacity.
+	 */
+	private final class EncodedChunk extends DocumentWriter {
+		private final BulkBuffer buffer = new BulkBuffer(INITIAL_BULK_BUFFER_SIZE);
+		private int[] ends = new int[collectionChunkSize];
+		private JsonGenerator json;
+		private int skipped;
+
+		@Override
+		JsonGenerator generator() throws IOException {
+			if (json == null) {
+				json = createJsonGenerator(buffer);
+			}
+			return json;
+		}
+
+		@Override
+		void documentWritten() throws IOException {
+			json.flush();
+			final int documents = buffer.documents();
+			if (documents == ends.length) {
+				ends = Arrays.copyOf(ends, documents << 1);
+			}
+			ends[documents] = buffer.size();
+			buffer.documentWritten();
+		}
+
+		void finish() throws IOException {
+			closeNested();
+			if (json != null) {
+				json.close();
+				json = null;
+			}
+		}
+
+		void reset() {
+			buffer.reset();
+			skipped = 0;
+		}
+	}
+
+	/**
+	 * Splits the documents of a report cycle into '_bulk' batches by {@code bulkLimit} and
+	 * {@code bulkSizeLimit}, and hands each of them to the {@link BulkSender} as soon as it is full.
+	 * Unless the reporter is async, {@link #close()} waits until the batches have been sent.
+	 */
+	private final class BulkChunks extends DocumentWriter implements Closeable {
+		private BulkBuffer buffer;
+		private JsonGenerator json;
+
+		@Override
+		JsonGenerator generator() throws IOException {
+			if (json == null) {
+				buffer = sender.acquire();
+				json = createJsonGenerator(buffer);
+			}
+			return json;
+		}
+
+		@Override
+		void documentWritten() throws IOException {
+			json.flush();
+			buffer.documentWritten();
+			dispatchIfFull();
+		}
+
+		/**
+		 * Copies the documents of an encoded chunk, closing the batches on the way.
+		 */
+		void append(EncodedChunk chunk) throws IOException {
+			final byte[] encoded = chunk.buffer.array();
+			int start = 0;
+			for (int i = 0; i < chunk.buffer.documents(); i++) {
+				final int end = chunk.ends[i];
+				generator();
+				buffer.write(encoded, start, end - start);
+				buffer.documentWritten();
+				dispatchIfFull();
+				start = end;
+			}
+		}
+
+		private void dispatchIfFull() throws IOException {
+			if (buffer.documents() >= bulkLimit || buffer.size() >= bulkSizeLimit) {
+				dispatch();
+			}
+		}
+
+		private void dispatch() throws IOException {
+			json.close();
+			final BulkBuffer bulk = buffer;
+			json = null;
+			buffer = null;
+			// the sinks get their copy first, the Elasticsearch sender may change the batch.
+			for (BulkSender sinkSender : sinkSenders) {
+				final BulkBuffer copy = sinkSender.acquire();
+				bulk.writeTo(copy);
+				copy.documentsWritten(bulk.documents());
+				sinkSender.submit(copy);
+			}
+			sender.submit(bulk);
+		}
+
+		/**
+		 * Drops the document whose encoding failed, so that the batch only has complete documents.
+		 */
+		void discard() throws IOException {
+			discardNested();
+			if (json != null) {
+				// closing must not complete the objects left open.
+				json.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+				json.close();
+				buffer.discardPartialDocument();
+				json = createJsonGenerator(buffer);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeNested();
+			if (json != null && buffer.documents() == 0) {
+				json.close();
+				sender.recycle(buffer);
+				json = null;
+				buffer = null;
+			} else if (json != null) {
+				dispatch();
+			}
+			if (!async) {
+				try {
+					sender.awaitIdle();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
 		}
 	}
 }
\ No newline at end of file
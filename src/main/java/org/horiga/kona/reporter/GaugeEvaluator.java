@@ -0,0 +1,333 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates the gauges of a report cycle on a small pool of threads, so that a gauge running a query
+ * or waiting on a lock cannot stall the reporter.
+ * <p>
+ * The gauges of a cycle are submitted at once and the reporter waits for them at most
+ * {@code timeout}. A gauge which has not returned by then is reported with its last value, marked as
+ * stale. An evaluation which has run for longer than {@code timeout} is cancelled: its thread is
+ * interrupted, so that hung gauges cannot hold the threads of the pool. An evaluation which started
+ * late in the cycle, behind slower gauges, keeps running and is checked again by the next cycle. A gauge
+ * is evaluated by one thread at a time: a gauge which ignores the interruption keeps its thread until it
+ * returns, and is not submitted again meanwhile.
+ * <p>
+ * A gauge which ran over the timeout {@code slowAfter} cycles in a row is slow: it is evaluated only
+ * every {@code slowEvery} cycles, until an evaluation returns within the timeout again.
+ * <pre>
+ * GaugeEvaluator evaluator = GaugeEvaluator.forRegistry(registry)
+ *     .timeout(200, TimeUnit.MILLISECONDS)
+ *     .threads(2)
+ *     .build();
+ * ElasticsearchReporter.forRegistry(registry).gaugeEvaluator(evaluator).build(hosts).start(1, TimeUnit.MINUTES);
+ * </pre>
+ */
+@Slf4j
+public class GaugeEvaluator extends MetricRegistryListener.Base implements Closeable {
+	public static final long DEFAULT_TIMEOUT_MILLIS = 500L;
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	public static final int DEFAULT_SLOW_AFTER = 3;
+	public static final int DEFAULT_SLOW_EVERY = 10;
+
+	private final MetricRegistry registry;
+	private final long timeoutNanos;
+	private final int slowAfter;
+	private final int slowEvery;
+	private final ThreadPoolExecutor executor;
+	private final Map<String, Entry> entries;
+
+	/**
+	 * Notified of the gauges running over the timeout, see {@link ReporterMetrics}.
+	 */
+	public interface Listener {
+		void onTimeout(String name);
+
+		void onSlow(String name, Gauge<Long> evaluationMillis);
+
+		void onRecovered(String name);
+
+		void onStale(int gauges);
+	}
+
+	public static Builder forRegistry(MetricRegistry registry) {
+		return new Builder(registry);
+	}
+
+	public static class Builder {
+		private final MetricRegistry registry;
+		private long timeoutMillis;
+		private int threads;
+		private int queueCapacity;
+		private int slowAfter;
+		private int slowEvery;
+
+		private Builder(MetricRegistry registry) {
+			this.registry = registry;
+			this.timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+			this.threads = DEFAULT_THREADS;
+			this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+			this.slowAfter = DEFAULT_SLOW_AFTER;
+			this.slowEvery = DEFAULT_SLOW_EVERY;
+		}
+
+		/**
+		 * @param timeout How long a report cycle waits for its gauges.
+		 * @return
+		 */
+		public Builder timeout(long timeout, TimeUnit unit) {
+			this.timeoutMillis = unit.toMillis(timeout);
+			return this;
+		}
+
+		public Builder threads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * @param queueCapacity The number of gauges waiting for a thread. The gauges over it keep their
+		 *                      last value for the cycle.
+		 * @return
+		 */
+		public Builder queueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		/**
+		 * @param slowAfter The consecutive timeouts making a gauge slow.
+		 * @param slowEvery A slow gauge is evaluated once every {@code slowEvery} cycles.
+		 * @return
+		 */
+		public Builder slow(int slowAfter, int slowEvery) {
+			this.slowAfter = slowAfter;
+			this.slowEvery = slowEvery;
+			return this;
+		}
+
+		public GaugeEvaluator build() {
+			return new GaugeEvaluator(registry, timeoutMillis, threads, queueCapacity, slowAfter, slowEvery);
+		}
+	}
+
+	protected GaugeEvaluator(MetricRegistry registry, long timeoutMillis, int threads, int queueCapacity,
+							 int slowAfter, int slowEvery) {
+		this.registry = registry;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, timeoutMillis));
+		this.slowAfter = Math.max(1, slowAfter);
+		this.slowEvery = Math.max(1, slowEvery);
+		this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+				new ThreadFactoryBuilder().setNameFormat("kona-gauge-evaluator-%d").setDaemon(true).build());
+		this.entries = new ConcurrentHashMap<>();
+		registry.addListener(this);
+	}
+
+	/**
+	 * Evaluates the gauges due in this cycle, and waits for them at most the timeout.
+	 */
+	public void evaluate(SortedMap<String, Gauge> gauges, Listener listener) {
+		final long cycleStart = System.nanoTime();
+		final List<Entry> due = new ArrayList<>(gauges.size());
+		gauges.forEach((name, gauge) -> {
+			Entry entry = entries.get(name);
+			if (null == entry) {
+				entry = entries.computeIfAbsent(name, n -> new Entry(n, gauge));
+			}
+			if (entry.running || (entry.slow && ++entry.skippedCycles < slowEvery)) {
+				return;
+			}
+			entry.skippedCycles = 0;
+			due.add(entry);
+		});
+		final CountDownLatch evaluated = new CountDownLatch(due.size());
+		for (Entry entry : due) {
+			entry.running = true;
+			try {
+				entry.future = executor.submit(() -> entry.evaluate(evaluated));
+			} catch (RejectedExecutionException e) {
+				entry.running = false;
+				evaluated.countDown();
+			}
+		}
+		try {
+			evaluated.await(timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final long now = System.nanoTime();
+		int stale = 0;
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			final Entry entry = entries.get(gauge.getKey());
+			if (null == entry) {
+				continue;
+			}
+			entry.stale = entry.evaluatedAt - cycleStart < 0;
+			if (entry.stale) {
+				stale++;
+			}
+			// a gauge queued behind slower ones has not used up its own timeout yet.
+			final long startedAt = entry.startedAt;
+			final boolean timedOut = entry.running ? startedAt != 0 && now - startedAt > timeoutNanos
+					: entry.evaluatedAt - cycleStart >= 0 && entry.durationNanos > timeoutNanos;
+			if (timedOut) {
+				if (entry.running) {
+					entry.cancel();
+				}
+				onTimeout(entry, listener);
+			} else if (!entry.running && entry.evaluatedAt - cycleStart >= 0) {
+				onEvaluated(entry, listener);
+			}
+		}
+		if (stale > 0) {
+			listener.onStale(stale);
+		}
+	}
+
+	/**
+	 * @return The cached value of the gauge, or {@code null} when it was not given to {@link #evaluate}.
+	 */
+	public Entry get(String name) {
+		return entries.get(name);
+	}
+
+	@Override
+	public void close() {
+		registry.removeListener(this);
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void onGaugeRemoved(String name) {
+		entries.remove(name);
+	}
+
+	private void onTimeout(Entry entry, Listener listener) {
+		// a run is counted once, however many cycles it spans.
+		if (entry.timeoutCounted) {
+			return;
+		}
+		entry.timeoutCounted = true;
+		entry.timeouts++;
+		listener.onTimeout(entry.name);
+		if (!entry.slow && entry.timeouts >= slowAfter) {
+			entry.slow = true;
+			log.warn("The gauge '{}' ran over the timeout of {}ms {} times in a row, it is now evaluated "
+					+ "every {} cycles.", entry.name, TimeUnit.NANOSECONDS.toMillis(timeoutNanos), entry.timeouts,
+					slowEvery);
+			listener.onSlow(entry.name, entry::getEvaluationMillis);
+		}
+	}
+
+	private void onEvaluated(Entry entry, Listener listener) {
+		entry.timeouts = 0;
+		if (entry.slow) {
+			entry.slow = false;
+			log.info("The gauge '{}' returned within the timeout again, in {}ms.", entry.name,
+					entry.getEvaluationMillis());
+			listener.onRecovered(entry.name);
+		}
+	}
+
+	/**
+	 * The cached value of a gauge. The counts of timeouts are only touched by the reporter thread.
+	 */
+	public static final class Entry {
+		private final String name;
+		private final Gauge<?> gauge;
+		private volatile Object value;
+		private volatile long evaluatedAt;
+		private volatile long startedAt;
+		private volatile long durationNanos;
+		private volatile boolean running;
+		private volatile boolean stale;
+		private volatile boolean timeoutCounted;
+		private volatile Future<?> future;
+		private int timeouts;
+		private int skippedCycles;
+		private boolean slow;
+
+		Entry(String name, Gauge<?> gauge) {
+			this.name = name;
+			this.gauge = gauge;
+			this.evaluatedAt = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+		}
+
+		private void evaluate(CountDownLatch evaluated) {
+			final long start = System.nanoTime();
+			startedAt = start;
+			timeoutCounted = false;
+			try {
+				value = gauge.getValue();
+				// a failed evaluation leaves the last value stale.
+				evaluatedAt = System.nanoTime();
+			} catch (RuntimeException e) {
+				log.debug("Fail! Evaluating the gauge '{}'. {}", name, e.toString());
+			} finally {
+				durationNanos = System.nanoTime() - start;
+				startedAt = 0;
+				running = false;
+				evaluated.countDown();
+			}
+		}
+
+		/**
+		 * Interrupts the running evaluation.
+		 */
+		private void cancel() {
+			final Future<?> running = future;
+			if (null != running && running.cancel(true)) {
+				log.debug("The evaluation of the gauge '{}' ran over the timeout and was interrupted.", name);
+			}
+		}
+
+		/**
+		 * @return The last value, {@code null} until the first evaluation returns.
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * @return {@code true} when the value was not refreshed by the current cycle.
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+
+		/**
+		 * @return How old the value is.
+		 */
+		public long getAgeMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - evaluatedAt);
+		}
+
+		/**
+		 * @return How long the last evaluation took, or the running one has taken so far.
+		 */
+		public long getEvaluationMillis() {
+			final long started = startedAt;
+			return TimeUnit.NANOSECONDS.toMillis(0 != started ? System.nanoTime() - started : durationNanos);
+		}
+	}
+}
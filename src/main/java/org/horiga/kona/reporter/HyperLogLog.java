@@ -0,0 +1,56 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * An estimate of the number of distinct strings added, in {@code 2^precision} bytes whatever the
+ * number of strings. The standard error is about {@code 1.04 / sqrt(2^precision)}, 3% with the
+ * default precision of 10.
+ */
+final class HyperLogLog {
+	static final int DEFAULT_PRECISION = 10;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final int precision;
+	private final byte[] registers;
+
+	HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	HyperLogLog(int precision) {
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	synchronized void add(String value) {
+		final long hash = HASH.hashUnencodedChars(value).asLong();
+		final int index = (int)(hash >>> (64 - precision));
+		// the position of the first 1 bit after the index bits, the guard bit caps it.
+		final byte rank = (byte)(Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+		if (rank > registers[index]) {
+			registers[index] = rank;
+		}
+	}
+
+	synchronized long estimate() {
+		final int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1.0d / (1L << register);
+			if (register == 0) {
+				zeros++;
+			}
+		}
+		final double alpha = 0.7213d / (1 + 1.079d / m);
+		final double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5d * m && zeros > 0) {
+			// linear counting is more accurate for the small cardinalities.
+			return Math.round(m * Math.log(m / (double)zeros));
+		}
+		return Math.round(estimate);
+	}
+}
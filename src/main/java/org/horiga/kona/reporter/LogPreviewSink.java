@@ -0,0 +1,57 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs the beginning of some batches at INFO, to look at the documents without an Elasticsearch.
+ * <p>
+ * At most {@code batchesPerSecond} batches are logged, and only their first {@code maxBytes} bytes,
+ * cut at the end of a line. The other batches are not even decoded.
+ */
+@Slf4j
+public class LogPreviewSink implements BulkSink {
+	public static final double DEFAULT_BATCHES_PER_SECOND = 0.1d;
+	public static final int DEFAULT_MAX_BYTES = 4096;
+
+	private final RateLimiter rateLimiter;
+	private final int maxBytes;
+	private final LongAdder suppressed = new LongAdder();
+
+	public LogPreviewSink() {
+		this(DEFAULT_BATCHES_PER_SECOND, DEFAULT_MAX_BYTES);
+	}
+
+	public LogPreviewSink(double batchesPerSecond, int maxBytes) {
+		this.rateLimiter = RateLimiter.create(batchesPerSecond);
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public void write(BulkBuffer bulk) {
+		if (!log.isInfoEnabled() || !rateLimiter.tryAcquire()) {
+			suppressed.increment();
+			return;
+		}
+		if (bulk.size() == 0) {
+			log.info("!! The metrics is blank !!");
+			return;
+		}
+		final byte[] array = bulk.array();
+		int length = Math.min(bulk.size(), maxBytes);
+		if (length < bulk.size()) {
+			int end = length;
+			while (end > 0 && array[end - 1] != '\n') {
+				end--;
+			}
+			length = end > 0 ? end : length;
+		}
+		log.info("=========== Elasticsearch '/_bulk' documents={}, bytes={}, suppressed batches={}\n{}{}",
+				bulk.documents(), bulk.size(), suppressed.sumThenReset(),
+				new String(array, 0, length, StandardCharsets.UTF_8),
+				length < bulk.size() ? "... " + (bulk.size() - length) + " more bytes" : "");
+	}
+}
@@ -0,0 +1,290 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.MetricRegistryListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The values of the last {@code capacity} report cycles of each metric, kept in memory to look at the
+ * last minutes of a host without querying Elasticsearch.
+ * <p>
+ * Each metric gets a slot of {@code capacity} entries of four doubles in a single direct buffer of
+ * {@code maxBytes}, allocated up front. An entry is written in place by the reporter thread which
+ * encoded the metric, the cost of a report is a map lookup and four writes per metric. The slot of a
+ * metric removed from the registry is freed at the next cycle, and once the budget is used up, the
+ * slots of the metrics not reported for {@code capacity} cycles are freed as well. The metrics which
+ * still do not fit in the budget are not kept. The fields of each type are:
+ * <pre>
+ * gauge      value
+ * counter    count
+ * meter      count, m1_rate
+ * timer      count, mean, p99, max    in the duration unit of the reporter
+ * histogram  count, mean, p99, max
+ * </pre>
+ * The values are the ones the reporter wrote into the documents, they are not computed again: the p99
+ * is left out with {@code encodeHistograms}.
+ * A cycle which did not report a metric, such as an unchanged metric with {@code onlyChanged}, has
+ * no entry for it.
+ */
+@Slf4j
+public class MetricHistory extends MetricRegistryListener.Base {
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+	public static final int DEFAULT_CAPACITY = 60;
+
+	private static final int FIELDS = 4;
+	private static final int ENTRY_BYTES = FIELDS * Double.BYTES;
+
+	/**
+	 * The metric types and the names of their fields.
+	 */
+	public enum Type {
+		GAUGE("value"),
+		COUNTER("count"),
+		METER("count", "m1_rate"),
+		TIMER("count", "mean", "p99", "max"),
+		HISTOGRAM("count", "mean", "p99", "max");
+
+		private final String[] fields;
+
+		Type(String... fields) {
+			this.fields = fields;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final int capacity;
+	private final int maxSlots;
+	private final long[] timestamps;
+	private final Map<String, Slot> slots;
+	private final AtomicInteger nextSlot;
+	private final Queue<Integer> freeSlots;
+	private final Queue<String> removed;
+	private final AtomicLong droppedEntries;
+	private volatile long cycle;
+
+	public MetricHistory() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param maxBytes The memory of the history, outside of the heap.
+	 * @param capacity The number of report cycles kept per metric.
+	 */
+	public MetricHistory(long maxBytes, int capacity) {
+		this.capacity = Math.max(1, capacity);
+		final long slotBytes = (long)this.capacity * ENTRY_BYTES;
+		this.maxSlots = (int)Math.min(Integer.MAX_VALUE / slotBytes, maxBytes / slotBytes);
+		this.buffer = ByteBuffer.allocateDirect((int)(maxSlots * slotBytes));
+		this.timestamps = new long[this.capacity];
+		this.slots = new ConcurrentHashMap<>();
+		this.nextSlot = new AtomicInteger();
+		this.freeSlots = new ConcurrentLinkedQueue<>();
+		this.removed = new ConcurrentLinkedQueue<>();
+		this.droppedEntries = new AtomicLong();
+		this.cycle = -1L;
+	}
+
+	/**
+	 * Starts the entries of a report cycle. Called by the reporter thread before the metrics are
+	 * appended, the slots are freed between the cycles so that no append writes into a freed slot.
+	 */
+	public void beginCycle(long timestampMillis) {
+		final long next = cycle + 1;
+		String name;
+		while (null != (name = removed.poll())) {
+			free(name);
+		}
+		if (nextSlot.get() >= maxSlots && freeSlots.isEmpty()) {
+			// the metrics not reported for a whole ring, such as the ones merged into another name.
+			slots.forEach((n, slot) -> {
+				if (slot.lastCycle <= next - capacity) {
+					free(n);
+				}
+			});
+		}
+		timestamps[(int)(next % capacity)] = timestampMillis;
+		cycle = next;
+	}
+
+	public void append(String name, Type type, double value) {
+		append(name, type, value, 0, 0, 0);
+	}
+
+	public void append(String name, Type type, double v0, double v1) {
+		append(name, type, v0, v1, 0, 0);
+	}
+
+	/**
+	 * Writes the entry of the current cycle of the metric.
+	 */
+	public void append(String name, Type type, double v0, double v1, double v2, double v3) {
+		final long current = cycle;
+		if (current < 0) {
+			return;
+		}
+		final Slot slot = slot(name, type);
+		if (null == slot) {
+			return;
+		}
+		// the cycles the metric was not reported in are cleared, at most one ring of them.
+		for (long c = Math.max(slot.lastCycle + 1, current - capacity + 1); c < current; c++) {
+			write(slot, c, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+		}
+		write(slot, current, v0, v1, v2, v3);
+		slot.lastCycle = current;
+	}
+
+	/**
+	 * @param pattern The metric names, where '*' matches any characters.
+	 * @return The entries of the matching metrics in {@code [fromMillis, toMillis]}, by name.
+	 */
+	public Map<String, Object> query(String pattern, long fromMillis, long toMillis) {
+		final Pattern names = Pattern.compile(("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q"));
+		final long current = cycle;
+		final Map<String, Object> result = new TreeMap<>();
+		slots.forEach((name, slot) -> {
+			if (!names.matcher(name).matches()) {
+				return;
+			}
+			final long last = Math.min(slot.lastCycle, current);
+			final List<Map<String, Object>> entries = new ArrayList<>();
+			for (long c = Math.max(slot.firstCycle, current - capacity + 1); c <= last; c++) {
+				final long timestamp = timestamps[(int)(c % capacity)];
+				final int offset = offset(slot, c);
+				if (timestamp < fromMillis || timestamp > toMillis || Double.isNaN(buffer.getDouble(offset))) {
+					continue;
+				}
+				final Map<String, Object> entry = new LinkedHashMap<>();
+				entry.put("timestamp", timestamp);
+				for (int i = 0; i < slot.type.fields.length; i++) {
+					final double value = buffer.getDouble(offset + i * Double.BYTES);
+					if (!Double.isNaN(value)) {
+						entry.put(slot.type.fields[i], value);
+					}
+				}
+				entries.add(entry);
+			}
+			if (!entries.isEmpty()) {
+				final Map<String, Object> metric = new LinkedHashMap<>();
+				metric.put("type", slot.type.name().toLowerCase(Locale.ROOT));
+				metric.put("entries", entries);
+				result.put(name, metric);
+			}
+		});
+		return result;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getMetrics() {
+		return slots.size();
+	}
+
+	public int getMaxMetrics() {
+		return maxSlots;
+	}
+
+	/**
+	 * @return The number of entries of new metrics not kept for lack of memory.
+	 */
+	public long getDroppedEntries() {
+		return droppedEntries.get();
+	}
+
+	private Slot slot(String name, Type type) {
+		Slot slot = slots.get(name);
+		if (null != slot) {
+			return slot;
+		}
+		if (nextSlot.get() < maxSlots || !freeSlots.isEmpty()) {
+			slot = slots.computeIfAbsent(name, n -> {
+				final Integer offset = freeSlots.poll();
+				if (null != offset) {
+					return new Slot(offset, type, cycle);
+				}
+				final int index = nextSlot.getAndIncrement();
+				return index < maxSlots ? new Slot(index * capacity * ENTRY_BYTES, type, cycle) : null;
+			});
+		}
+		if (null == slot && droppedEntries.getAndIncrement() == 0) {
+			log.warn("The metric history is full with {} metrics, the new metrics are not kept.", maxSlots);
+		}
+		return slot;
+	}
+
+	private void free(String name) {
+		final Slot slot = slots.remove(name);
+		if (null != slot) {
+			freeSlots.offer(slot.offset);
+		}
+	}
+
+	@Override
+	public void onGaugeRemoved(String name) {
+		removed.offer(name);
+	}
+
+	@Override
+	public void onCounterRemoved(String name) {
+		removed.offer(name);
+	}
+
+	@Override
+	public void onHistogramRemoved(String name) {
+		removed.offer(name);
+	}
+
+	@Override
+	public void onMeterRemoved(String name) {
+		removed.offer(name);
+	}
+
+	@Override
+	public void onTimerRemoved(String name) {
+		removed.offer(name);
+	}
+
+	private int offset(Slot slot, long c) {
+		return slot.offset + (int)(c % capacity) * ENTRY_BYTES;
+	}
+
+	private void write(Slot slot, long c, double v0, double v1, double v2, double v3) {
+		final int offset = offset(slot, c);
+		buffer.putDouble(offset, v0);
+		buffer.putDouble(offset + Double.BYTES, v1);
+		buffer.putDouble(offset + 2 * Double.BYTES, v2);
+		buffer.putDouble(offset + 3 * Double.BYTES, v3);
+	}
+
+	/**
+	 * The ring of entries of a metric in the buffer.
+	 */
+	private static final class Slot {
+		private final int offset;
+		private final Type type;
+		private final long firstCycle;
+		private volatile long lastCycle;
+
+		Slot(int offset, Type type, long firstCycle) {
+			this.offset = offset;
+			this.type = type;
+			this.firstCycle = firstCycle;
+			this.lastCycle = firstCycle - 1;
+		}
+	}
+}
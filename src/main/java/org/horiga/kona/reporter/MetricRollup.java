@@ -0,0 +1,424 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.horiga.kona.metrics.HdrHistogramReservoir;
+import org.horiga.kona.metrics.HdrSnapshot;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Samples the metrics matching its rules more often than they are reported, and hands the reporter
+ * an aggregate of each report interval instead of the value at the time of the report.
+ * <ul>
+ * <li>A gauge is sampled into a ring buffer of doubles, and reported with the {@code min},
+ * {@code max}, {@code sum}, {@code count} and {@code last} of the samples since the previous report.</li>
+ * <li>The interval histograms of a timer or histogram backed by an {@link HdrHistogramReservoir} are
+ * added up, and its percentiles are those of the whole report interval. Other reservoirs are left to
+ * the reporter.</li>
+ * </ul>
+ * Counters and meters are cumulative, they are not sampled. Each rule has its own sampling interval,
+ * the first rule matching a metric name applies.
+ * <p>
+ * The gauges are sampled on a few threads of their own, so that a hung gauge does not stall the
+ * sampling of the others. Like with the {@link GaugeEvaluator}, a gauge still running is not sampled
+ * again, and is interrupted once it has run for longer than the gauge timeout.
+ * <pre>
+ * MetricRollup rollup = MetricRollup.forRegistry(registry)
+ *     .rule("jvm.memory.*", 1, TimeUnit.SECONDS)
+ *     .rule("api.*", 5, TimeUnit.SECONDS)
+ *     .build();
+ * ElasticsearchReporter.forRegistry(registry).rollup(rollup).build(hosts).start(1, TimeUnit.MINUTES);
+ * </pre>
+ */
+@Slf4j
+public class MetricRollup extends MetricRegistryListener.Base implements Closeable {
+	public static final int DEFAULT_CAPACITY = 128;
+
+	private final MetricRegistry registry;
+	private final List<Rule> rules;
+	private final int capacity;
+	private final long gaugeTimeoutNanos;
+	private final ScheduledExecutorService sampler;
+	private final ExecutorService gaugeSampler;
+
+	public static Builder forRegistry(MetricRegistry registry) {
+		return new Builder(registry);
+	}
+
+	public static class Builder {
+		private final MetricRegistry registry;
+		private final List<Rule> rules;
+		private int capacity;
+		private long gaugeTimeoutMillis;
+		private int gaugeThreads;
+
+		private Builder(MetricRegistry registry) {
+			this.registry = registry;
+			this.rules = new ArrayList<>();
+			this.capacity = DEFAULT_CAPACITY;
+			this.gaugeTimeoutMillis = GaugeEvaluator.DEFAULT_TIMEOUT_MILLIS;
+			this.gaugeThreads = GaugeEvaluator.DEFAULT_THREADS;
+		}
+
+		/**
+		 * @param pattern The metric names to sample, where '*' matches any characters, such as
+		 *                {@code "jvm.memory.*"}.
+		 * @return
+		 */
+		public Builder rule(String pattern, long sampleInterval, TimeUnit unit) {
+			this.rules.add(new Rule(pattern, unit.toMillis(sampleInterval)));
+			return this;
+		}
+
+		/**
+		 * @param capacity The number of samples kept per gauge, rounded up to a power of two. A report
+		 *                 interval longer than {@code capacity} samples is aggregated over its last
+		 *                 {@code capacity} samples.
+		 * @return
+		 */
+		public Builder capacity(int capacity) {
+			this.capacity = capacity;
+			return this;
+		}
+
+		/**
+		 * @param timeout How long a gauge may run before it is interrupted, 500ms by default.
+		 * @param threads The threads sampling the gauges, 2 by default.
+		 * @return
+		 */
+		public Builder gaugeTimeout(long timeout, TimeUnit unit, int threads) {
+			this.gaugeTimeoutMillis = unit.toMillis(timeout);
+			this.gaugeThreads = threads;
+			return this;
+		}
+
+		/**
+		 * Starts sampling the metrics of the registry.
+		 */
+		public MetricRollup build() {
+			return new MetricRollup(registry, rules, capacity, gaugeTimeoutMillis, gaugeThreads);
+		}
+	}
+
+	protected MetricRollup(MetricRegistry registry, List<Rule> rules, int capacity, long gaugeTimeoutMillis,
+						   int gaugeThreads) {
+		this.registry = registry;
+		this.rules = rules;
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		this.gaugeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, gaugeTimeoutMillis));
+		this.sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("kona-rollup-sampler").setDaemon(true).build());
+		this.gaugeSampler = Executors.newFixedThreadPool(Math.max(1, gaugeThreads), new ThreadFactoryBuilder()
+				.setNameFormat("kona-rollup-gauge-%d").setDaemon(true).build());
+		registry.addListener(this);
+		for (Rule rule : rules) {
+			sampler.scheduleAtFixedRate(rule::sample, rule.intervalMillis, rule.intervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return The samples of the gauge since the previous call, or {@code null} when the gauge is not
+	 * sampled.
+	 */
+	public GaugeWindow gaugeWindow(String name) {
+		final Series series = series(name);
+		return series instanceof GaugeSeries ? ((GaugeSeries)series).drain() : null;
+	}
+
+	/**
+	 * @return The values recorded by the timer or histogram since the previous call, or {@code null}
+	 * when it is not sampled. The snapshot is overwritten by the next-but-one call.
+	 */
+	public Snapshot snapshot(String name) {
+		final Series series = series(name);
+		return series instanceof HistogramSeries ? ((HistogramSeries)series).drain() : null;
+	}
+
+	/**
+	 * Stops sampling.
+	 */
+	@Override
+	public void close() {
+		registry.removeListener(this);
+		sampler.shutdownNow();
+		gaugeSampler.shutdownNow();
+	}
+
+	private Series series(String name) {
+		for (Rule rule : rules) {
+			final Series series = rule.series.get(name);
+			if (null != series) {
+				return series;
+			}
+		}
+		return null;
+	}
+
+	private Rule rule(String name) {
+		for (Rule rule : rules) {
+			if (rule.pattern.matcher(name).matches()) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void onGaugeAdded(String name, Gauge<?> gauge) {
+		final Rule rule = rule(name);
+		if (null != rule) {
+			rule.series.put(name, new GaugeSeries(name, gauge, capacity));
+		}
+	}
+
+	@Override
+	public void onTimerAdded(String name, Timer timer) {
+		onSamplingAdded(name, timer);
+	}
+
+	@Override
+	public void onHistogramAdded(String name, Histogram histogram) {
+		onSamplingAdded(name, histogram);
+	}
+
+	private void onSamplingAdded(String name, Sampling sampling) {
+		final Rule rule = rule(name);
+		if (null == rule) {
+			return;
+		}
+		// the interval histograms can only be merged when the reservoir swaps them on each snapshot.
+		final Snapshot snapshot = HdrHistogramReservoir.intervalSnapshot(sampling);
+		if (snapshot instanceof HdrSnapshot) {
+			final HistogramSeries series = new HistogramSeries(sampling);
+			series.add(((HdrSnapshot)snapshot).getHistogram());
+			rule.series.put(name, series);
+		} else {
+			log.debug("The metric '{}' is not backed by an HdrHistogramReservoir, it is not sampled.", name);
+		}
+	}
+
+	@Override
+	public void onGaugeRemoved(String name) {
+		remove(name);
+	}
+
+	@Override
+	public void onTimerRemoved(String name) {
+		remove(name);
+	}
+
+	@Override
+	public void onHistogramRemoved(String name) {
+		remove(name);
+	}
+
+	private void remove(String name) {
+		rules.forEach(rule -> rule.series.remove(name));
+	}
+
+	/**
+	 * The metrics matching a name pattern, sampled at the same interval.
+	 */
+	protected static final class Rule {
+		private final Pattern pattern;
+		private final long intervalMillis;
+		private final Map<String, Series> series;
+
+		Rule(String pattern, long intervalMillis) {
+			this.pattern = Pattern.compile(("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q"));
+			this.intervalMillis = Math.max(1L, intervalMillis);
+			this.series = new ConcurrentHashMap<>();
+		}
+
+		private void sample() {
+			for (Series s : series.values()) {
+				try {
+					s.sample();
+				} catch (RuntimeException e) {
+					log.debug("Fail! Sampling a metric. {}", e.toString());
+				}
+			}
+		}
+	}
+
+	private interface Series {
+		void sample();
+	}
+
+	/**
+	 * The samples of a gauge in a ring buffer written by one gauge sampler thread at a time and drained
+	 * by the reporter thread.
+	 */
+	private final class GaugeSeries implements Series {
+		private final String name;
+		private final Gauge<?> gauge;
+		private final double[] samples;
+		private final int mask;
+		private volatile long head;
+		private long tail;
+		private volatile boolean running;
+		private volatile long startedAt;
+		private volatile Future<?> future;
+
+		GaugeSeries(String name, Gauge<?> gauge, int capacity) {
+			this.name = name;
+			this.gauge = gauge;
+			this.samples = new double[capacity];
+			this.mask = capacity - 1;
+		}
+
+		/**
+		 * Submits the sampling of the gauge, unless the previous one is still running.
+		 */
+		@Override
+		public void sample() {
+			if (running) {
+				final long started = startedAt;
+				if (0 != started && System.nanoTime() - started > gaugeTimeoutNanos && future.cancel(true)) {
+					log.debug("The sampling of the gauge '{}' ran over the timeout and was interrupted.", name);
+				}
+				return;
+			}
+			running = true;
+			try {
+				future = gaugeSampler.submit(this::read);
+			} catch (RejectedExecutionException e) {
+				running = false;
+			}
+		}
+
+		private void read() {
+			startedAt = System.nanoTime();
+			try {
+				final Object value = gauge.getValue();
+				if (value instanceof Number) {
+					final long h = head;
+					samples[(int)(h & mask)] = ((Number)value).doubleValue();
+					head = h + 1;
+				}
+			} catch (RuntimeException e) {
+				log.debug("Fail! Sampling the gauge '{}'. {}", name, e.toString());
+			} finally {
+				startedAt = 0;
+				running = false;
+			}
+		}
+
+		synchronized GaugeWindow drain() {
+			final long h = head;
+			final long from = Math.max(tail, h - samples.length);
+			tail = h;
+			if (from == h) {
+				return null;
+			}
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			double sum = 0;
+			for (long i = from; i < h; i++) {
+				final double sample = samples[(int)(i & mask)];
+				min = Math.min(min, sample);
+				max = Math.max(max, sample);
+				sum += sample;
+			}
+			return new GaugeWindow(min, max, sum, (int)(h - from), samples[(int)((h - 1) & mask)]);
+		}
+	}
+
+	/**
+	 * The interval histograms of a timer or histogram, added up between two report cycles. Like the
+	 * {@link HdrHistogramReservoir}, the window histograms are recycled: a drained window is reused by
+	 * the next-but-one window.
+	 */
+	private static final class HistogramSeries implements Series {
+		private final Sampling sampling;
+		private org.HdrHistogram.Histogram window;
+		private org.HdrHistogram.Histogram drained;
+		private org.HdrHistogram.Histogram recycled;
+
+		HistogramSeries(Sampling sampling) {
+			this.sampling = sampling;
+		}
+
+		@Override
+		public void sample() {
+			add(((HdrSnapshot)HdrHistogramReservoir.intervalSnapshot(sampling)).getHistogram());
+		}
+
+		synchronized void add(org.HdrHistogram.Histogram interval) {
+			if (null == window) {
+				window = null != recycled ? recycled : new org.HdrHistogram.Histogram(interval);
+				recycled = null;
+				window.reset();
+			}
+			window.add(interval);
+		}
+
+		synchronized Snapshot drain() {
+			// the values recorded since the last sample go into this window.
+			sample();
+			recycled = drained;
+			drained = window;
+			window = null;
+			return new HdrSnapshot(drained);
+		}
+	}
+
+	/**
+	 * The aggregate of the samples of a gauge over a report interval.
+	 */
+	public static final class GaugeWindow {
+		private final double min;
+		private final double max;
+		private final double sum;
+		private final int count;
+		private final double last;
+
+		GaugeWindow(double min, double max, double sum, int count, double last) {
+			this.min = min;
+			this.max = max;
+			this.sum = sum;
+			this.count = count;
+			this.last = last;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public double getLast() {
+			return last;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.horiga.kona.reporter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A document of a compact {@link DocumentLayout} being written: the metrics come in
+ * {@link DocumentLayout#NAME_ORDER}, and the objects of the name segments they share stay open.
+ * <p>
+ * The fields of a metric are written in the object of its last segment, before the objects of
+ * longer names, so {@code "a.b"} and {@code "a.b.c"} give <code>"a":{"b":{"count":1,"c":{...}}}</code>.
+ * A segment named like a metric field, such as {@code count} in {@code "a.b.count"}, gets a trailing
+ * '_' when its parent is a metric, so a document never has duplicated keys.
+ */
+final class NestedDocument {
+	private static final Set<String> METRIC_FIELDS = ImmutableSet.of("count", "delta", "hdr",
+			"m1_rate", "m5_rate", "m15_rate", "mean_rate", "max", "mean", "min", "stddev",
+			"p50", "p75", "p95", "p98", "p99", "p999", "sum", "last", "staleMillis",
+			"floatValue", "doubleValue", "shortValue", "intValue", "longValue");
+
+	private SerializableString[] segments = new SerializableString[16];
+	private boolean[] metrics = new boolean[16];
+	private int depth;
+	private boolean open;
+	private String group;
+	private int fields;
+
+	boolean isOpen() {
+		return open;
+	}
+
+	String group() {
+		return group;
+	}
+
+	/**
+	 * Starts a document after its action line and common fields have been written.
+	 */
+	void open(String group) {
+		this.open = true;
+		this.group = group;
+		this.depth = 0;
+		this.fields = 0;
+	}
+
+	/**
+	 * Closes the objects the metric does not share with the previous one and opens its own.
+	 */
+	void beginMetric(JsonGenerator json, SerializableString[] path) throws IOException {
+		int common = 0;
+		while (common < depth && common < path.length - 1 && segments[common].equals(path[common])) {
+			common++;
+		}
+		while (depth > common) {
+			json.writeEndObject();
+			depth--;
+		}
+		for (int i = common; i < path.length; i++) {
+			if (depth > 0 && metrics[depth - 1] && METRIC_FIELDS.contains(path[i].getValue())) {
+				json.writeFieldName(new SerializedString(path[i].getValue() + "_"));
+			} else {
+				json.writeFieldName(path[i]);
+			}
+			json.writeStartObject();
+			push(path[i], i == path.length - 1);
+		}
+	}
+
+	/**
+	 * @return {@code true} when the document holds {@code maxFields} metric fields and has to be
+	 * closed.
+	 */
+	boolean endMetric(JsonGenerator json, int maxFields) {
+		fields += json.getOutputContext().getEntryCount();
+		return fields >= maxFields;
+	}
+
+	/**
+	 * Closes the open objects and the document itself.
+	 */
+	void close(JsonGenerator json) throws IOException {
+		while (depth > 0) {
+			json.writeEndObject();
+			depth--;
+		}
+		json.writeEndObject();
+		json.writeRaw('\n');
+		open = false;
+		group = null;
+	}
+
+	/**
+	 * Forgets the document being written, whose bytes have been dropped.
+	 */
+	void discard() {
+		open = false;
+		group = null;
+		depth = 0;
+	}
+
+	private void push(SerializableString segment, boolean metric) {
+		if (depth == segments.length) {
+			segments = Arrays.copyOf(segments, depth << 1);
+			metrics = Arrays.copyOf(metrics, depth << 1);
+		}
+		segments[depth] = segment;
+		metrics[depth] = metric;
+		depth++;
+	}
+}
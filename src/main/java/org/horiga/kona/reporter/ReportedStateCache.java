@@ -0,0 +1,98 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.MetricRegistryListener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last reported value of each metric, used to skip the metrics which have not changed since the
+ * previous report cycle.
+ * <p>
+ * The value is the count of counters, meters, timers and histograms, and the raw bits of the number
+ * of gauges. Every {@code heartbeatMillis} a cycle reports every metric regardless. The cache is a
+ * {@link MetricRegistryListener}, an entry is evicted as soon as its metric is removed from the
+ * registry.
+ */
+public class ReportedStateCache extends MetricRegistryListener.Base {
+
+	private final long heartbeatMillis;
+	private final Map<String, ReportedValue> values;
+	private long lastHeartbeat;
+	private boolean heartbeat;
+
+	public ReportedStateCache(long heartbeatMillis) {
+		this.heartbeatMillis = heartbeatMillis;
+		this.values = new ConcurrentHashMap<>();
+		this.lastHeartbeat = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Starts a report cycle.
+	 *
+	 * @return {@code true} when this cycle is a heartbeat which reports every metric.
+	 */
+	public boolean beginCycle(long now) {
+		heartbeat = lastHeartbeat == Long.MIN_VALUE || now - lastHeartbeat >= heartbeatMillis;
+		if (heartbeat) {
+			lastHeartbeat = now;
+		}
+		return heartbeat;
+	}
+
+	/**
+	 * Records the value of the metric in this cycle.
+	 *
+	 * @return {@code true} when the metric has to be reported: its value changed, it is new, or this
+	 * cycle is a heartbeat.
+	 */
+	public boolean update(String name, long value) {
+		final ReportedValue reported = values.get(name);
+		if (null == reported) {
+			values.put(name, new ReportedValue(value));
+			return true;
+		}
+		if (reported.value != value) {
+			reported.value = value;
+			return true;
+		}
+		return heartbeat;
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	@Override
+	public void onGaugeRemoved(String name) {
+		values.remove(name);
+	}
+
+	@Override
+	public void onCounterRemoved(String name) {
+		values.remove(name);
+	}
+
+	@Override
+	public void onHistogramRemoved(String name) {
+		values.remove(name);
+	}
+
+	@Override
+	public void onMeterRemoved(String name) {
+		values.remove(name);
+	}
+
+	@Override
+	public void onTimerRemoved(String name) {
+		values.remove(name);
+	}
+
+	private static final class ReportedValue {
+		private long value;
+
+		ReportedValue(long value) {
+			this.value = value;
+		}
+	}
+}
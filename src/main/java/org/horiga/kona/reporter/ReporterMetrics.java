@@ -0,0 +1,251 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.horiga.kona.metrics.HdrHistogramReservoir;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of the reporter itself, recorded into the registry it reports:
+ * <pre>
+ * {prefix}.cycle                  timer      a whole report cycle
+ * {prefix}.cycle.collect          timer      reading the metrics out of the registry
+ * {prefix}.cycle.encode           timer      the snapshots and the encoding of the documents
+ * {prefix}.cycle.send             timer      waiting for the last batches to be sent, unless async
+ * {prefix}.cycle.skipped          counter    the metrics skipped by the cycle budget
+ * {prefix}.bulk.bytes             histogram  the body size of each '_bulk' request
+ * {prefix}.bulk.documents         histogram  the documents of each '_bulk' request
+ * {prefix}.requests.{host:port}   timer      the latency of the requests to each node
+ * {prefix}.requests.failures      counter    the requests failed by an I/O error or a 5xx status
+ * {prefix}.requests.retries       counter    the requests retried on another node
+ * {prefix}.responses.{status}     counter    the responses by HTTP status
+ * {prefix}.items.failures.{type}  counter    the items rejected in accepted requests, by error type
+ * {prefix}.items.retries          counter    the rejected items sent again
+ * {prefix}.items.dropped          counter    the rejected items not worth sending again, such as
+ *                                            mapping errors
+ * {prefix}.batches.*              gauges     queued, sent, failed, dropped, spooled, replayed, evicted
+ * {prefix}.sinks.{name}.*         gauges     queued, sent, failed, dropped of each {@link BulkSink}
+ * {prefix}.cardinality.{prefix}   gauge      the distinct names of each prefix over its limit, see
+ *                                            {@link CardinalityGuard}
+ * {prefix}.gauges.timeouts        counter    the gauge evaluations over the timeout, see {@link GaugeEvaluator}
+ * {prefix}.gauges.stale           counter    the gauges reported with their last value
+ * {prefix}.gauges.slow.{name}     gauge      the evaluation time in ms of each slow gauge, while it is slow
+ * </pre>
+ * The timers and histograms record into {@link HdrHistogramReservoir}s and the counters into
+ * {@code LongAdder}s, so the recording never takes a lock. The snapshot of a timer or histogram taken by
+ * the reporter covers the values recorded since its previous report. The other readers of the registry,
+ * such as the actuator '/metrics' endpoint, see that last reported interval and never empty the next
+ * one, see {@link HdrHistogramReservoir#intervalSnapshot}.
+ */
+public class ReporterMetrics implements BulkTransport.Listener, GaugeEvaluator.Listener {
+	public static final String DEFAULT_PREFIX = "kona.reporter";
+
+	private final MetricRegistry registry;
+	private final String prefix;
+	private final Timer cycle;
+	private final Timer collect;
+	private final Timer encode;
+	private final Timer send;
+	private final Counter skipped;
+	private final Histogram bulkBytes;
+	private final Histogram bulkDocuments;
+	private final Counter failures;
+	private final Counter retries;
+	private final Map<String, Timer> requests;
+	private final Map<Integer, Counter> responses;
+	private final Counter itemRetries;
+	private final Counter itemsDropped;
+	private final Map<String, Counter> itemFailures;
+	private final Counter gaugeTimeouts;
+	private final Counter staleGauges;
+
+	public ReporterMetrics(MetricRegistry registry, String prefix) {
+		this.registry = registry;
+		this.prefix = prefix;
+		this.cycle = timer("cycle");
+		this.collect = timer("cycle.collect");
+		this.encode = timer("cycle.encode");
+		this.send = timer("cycle.send");
+		this.skipped = register("cycle.skipped", new Counter());
+		this.bulkBytes = register("bulk.bytes", new Histogram(reservoir()));
+		this.bulkDocuments = register("bulk.documents", new Histogram(reservoir()));
+		this.failures = register("requests.failures", new Counter());
+		this.retries = register("requests.retries", new Counter());
+		this.requests = new ConcurrentHashMap<>();
+		this.responses = new ConcurrentHashMap<>();
+		this.itemRetries = register("items.retries", new Counter());
+		this.itemsDropped = register("items.dropped", new Counter());
+		this.itemFailures = new ConcurrentHashMap<>();
+		this.gaugeTimeouts = register("gauges.timeouts", new Counter());
+		this.staleGauges = register("gauges.stale", new Counter());
+	}
+
+	/**
+	 * @return A filter matching every metric but the ones of this reporter.
+	 */
+	public MetricFilter excluding(MetricFilter filter) {
+		return (name, metric) -> !name.startsWith(prefix + ".") && filter.matches(name, metric);
+	}
+
+	/**
+	 * Registers the counts of the sender and of the spool, if any, as gauges.
+	 */
+	public void registerGauges(BulkSender sender, BulkSpool spool) {
+		registerSenderGauges("batches", sender);
+		if (null != spool) {
+			register("batches.spooled", (Gauge<Long>)spool::getSpooledBatches);
+			register("batches.replayed", (Gauge<Long>)spool::getReplayedBatches);
+			register("batches.evicted", (Gauge<Long>)spool::getEvictedBatches);
+		}
+	}
+
+	public void registerSinkGauges(String sink, BulkSender sender) {
+		registerSenderGauges(MetricRegistry.name("sinks", sink), sender);
+	}
+
+	/**
+	 * Registers the estimated number of distinct names of a metric prefix which went over its limit.
+	 */
+	public void onCardinalityTripped(String metricPrefix, Gauge<Long> distinctNames) {
+		register(MetricRegistry.name("cardinality", metricPrefix), distinctNames);
+	}
+
+	private void registerSenderGauges(String name, BulkSender sender) {
+		register(name + ".queued", (Gauge<Long>)sender::getQueuedBatches);
+		register(name + ".sent", (Gauge<Long>)sender::getSentBatches);
+		register(name + ".failed", (Gauge<Long>)sender::getFailedBatches);
+		register(name + ".dropped", (Gauge<Long>)sender::getDroppedBatches);
+		register(name + ".queue-size", (Gauge<Integer>)sender::getQueueSize);
+	}
+
+	/**
+	 * Removes every metric of this reporter from the registry.
+	 */
+	public void remove() {
+		registry.removeMatching((name, metric) -> name.startsWith(prefix + "."));
+	}
+
+	public void onCycle(long collectNanos, long encodeNanos, long sendNanos) {
+		collect.update(collectNanos, TimeUnit.NANOSECONDS);
+		encode.update(encodeNanos, TimeUnit.NANOSECONDS);
+		send.update(sendNanos, TimeUnit.NANOSECONDS);
+		cycle.update(collectNanos + encodeNanos + sendNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void onSkipped(int metrics) {
+		skipped.inc(metrics);
+	}
+
+	public void onBulk(BulkBuffer bulk) {
+		bulkBytes.update(bulk.size());
+		bulkDocuments.update(bulk.documents());
+	}
+
+	public void onItemFailures(BulkResponse response) {
+		response.getFailureCounts().forEach((type, items) -> {
+			Counter counter = itemFailures.get(type);
+			if (null == counter) {
+				counter = itemFailures.computeIfAbsent(type, t -> register("items.failures." + t, new Counter()));
+			}
+			counter.inc(items);
+		});
+	}
+
+	public void onItemRetries(int items) {
+		itemRetries.inc(items);
+	}
+
+	public void onItemsDropped(int items) {
+		itemsDropped.inc(items);
+	}
+
+	@Override
+	public void onTimeout(String name) {
+		gaugeTimeouts.inc();
+	}
+
+	@Override
+	public void onSlow(String name, Gauge<Long> evaluationMillis) {
+		register(MetricRegistry.name("gauges.slow", name), evaluationMillis);
+	}
+
+	@Override
+	public void onRecovered(String name) {
+		registry.remove(MetricRegistry.name(prefix, "gauges.slow", name));
+	}
+
+	@Override
+	public void onStale(int gauges) {
+		staleGauges.inc(gauges);
+	}
+
+	@Override
+	public void onResponse(ElasticsearchNode node, int status, long elapsedNanos) {
+		request(node).update(elapsedNanos, TimeUnit.NANOSECONDS);
+		Counter counter = responses.get(status);
+		if (null == counter) {
+			counter = responses.computeIfAbsent(status, s -> register("responses." + s, new Counter()));
+		}
+		counter.inc();
+		if (status >= 500) {
+			failures.inc();
+		}
+	}
+
+	@Override
+	public void onFailure(ElasticsearchNode node, long elapsedNanos) {
+		request(node).update(elapsedNanos, TimeUnit.NANOSECONDS);
+		failures.inc();
+	}
+
+	@Override
+	public void onRetry(ElasticsearchNode node) {
+		retries.inc();
+	}
+
+	private Timer request(ElasticsearchNode node) {
+		final Timer timer = requests.get(node.getEndpoint());
+		return null != timer ? timer
+				: requests.computeIfAbsent(node.getEndpoint(), endpoint -> timer("requests." + endpoint));
+	}
+
+	private Timer timer(String name) {
+		return register(name, new Timer(reservoir()));
+	}
+
+	/**
+	 * @return A reservoir whose intervals are only taken by the reporter, from the first cycle on.
+	 */
+	private static HdrHistogramReservoir reservoir() {
+		final HdrHistogramReservoir reservoir = new HdrHistogramReservoir();
+		// takes the first, empty interval, so the actuator never reads more than a view.
+		HdrHistogramReservoir.intervalSnapshot(reservoir::getSnapshot);
+		return reservoir;
+	}
+
+	/**
+	 * @return The metric registered under the name, which may have been registered by another
+	 * reporter sharing the registry and the prefix.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(String name, T metric) {
+		final String fullName = MetricRegistry.name(prefix, name);
+		try {
+			return registry.register(fullName, metric);
+		} catch (IllegalArgumentException e) {
+			final Metric existing = registry.getMetrics().get(fullName);
+			if (metric.getClass().isInstance(existing) || (metric instanceof Gauge && existing instanceof Gauge)) {
+				return (T)existing;
+			}
+			throw e;
+		}
+	}
+}
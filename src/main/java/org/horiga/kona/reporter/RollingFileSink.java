@@ -0,0 +1,122 @@
+package org.horiga.kona.reporter;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends the batches to local NDJSON files, rolled over by size and by age.
+ * <p>
+ * The files hold the '_bulk' bodies as they were encoded, action lines included, so a file can be
+ * loaded into Elasticsearch later as is:
+ * <pre>
+ * curl -XPOST localhost:9200/_bulk --data-binary @metrics-20160101-000000-0000.ndjson
+ * </pre>
+ * A file is written through a {@link FileChannel} straight from the batch buffer. A new file is
+ * started when the current one would grow over {@code maxFileBytes} or is older than
+ * {@code maxAge}, and only the newest {@code maxFiles} files are kept. Writes go to the page cache
+ * and are not forced to the disk.
+ */
+@Slf4j
+public class RollingFileSink implements BulkSink {
+	public static final long DEFAULT_MAX_FILE_BYTES = 64 * 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+	public static final int DEFAULT_MAX_FILES = 24;
+
+	private static final String FILE_SUFFIX = ".ndjson";
+	private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	private final File directory;
+	private final String prefix;
+	private final long maxFileBytes;
+	private final long maxAgeMillis;
+	private final int maxFiles;
+	private FileChannel channel;
+	private long fileBytes;
+	private long openedAt;
+	private int sequence;
+
+	public RollingFileSink(File directory) throws IOException {
+		this(directory, "metrics-", DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS,
+				DEFAULT_MAX_FILES);
+	}
+
+	public RollingFileSink(File directory, String prefix, long maxFileBytes, long maxAge, TimeUnit unit,
+						   int maxFiles) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the directory: " + directory);
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.maxFileBytes = maxFileBytes;
+		this.maxAgeMillis = unit.toMillis(maxAge);
+		this.maxFiles = Math.max(1, maxFiles);
+	}
+
+	@Override
+	public synchronized void write(BulkBuffer bulk) throws IOException {
+		if (bulk.size() == 0) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		if (null != channel && ((fileBytes > 0 && fileBytes + bulk.size() > maxFileBytes)
+				|| now - openedAt >= maxAgeMillis)) {
+			closeFile();
+		}
+		if (null == channel) {
+			openFile(now);
+		}
+		final ByteBuffer src = ByteBuffer.wrap(bulk.array(), 0, bulk.size());
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
+		fileBytes += bulk.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closeFile();
+	}
+
+	private void openFile(long now) throws IOException {
+		final File file = new File(directory, String.format("%s%s-%04d%s", prefix,
+				LocalDateTime.now().format(FILE_TIME), sequence++ % 10000, FILE_SUFFIX));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		fileBytes = channel.size();
+		openedAt = now;
+		deleteOldFiles();
+	}
+
+	private void closeFile() throws IOException {
+		if (null != channel) {
+			try {
+				channel.close();
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	private void deleteOldFiles() {
+		final File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(FILE_SUFFIX));
+		if (null == files || files.length <= maxFiles) {
+			return;
+		}
+		// the names sort by the time they were opened at.
+		Arrays.sort(files);
+		for (int i = 0; i < files.length - maxFiles; i++) {
+			if (!files[i].delete()) {
+				log.warn("Cannot delete the old metrics file '{}'.", files[i]);
+			}
+		}
+	}
+}
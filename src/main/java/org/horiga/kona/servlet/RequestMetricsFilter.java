@@ -0,0 +1,275 @@
+package org.horiga.kona.servlet;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.horiga.kona.metrics.HdrHistogramReservoir;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Times the HTTP requests per route and per status class:
+ * <pre>
+ * {prefix}.{route}.{1xx,2xx,3xx,4xx,5xx}    a timer backed by an {@link HdrHistogramReservoir}
+ * </pre>
+ * The route of a request is its Spring MVC handler pattern, such as {@code "/users/{id}"}, or
+ * {@code "unmatched"} when there is none. Another {@code routeResolver} can be given to a plain
+ * servlet application. The route is read after the request is handled.
+ * <p>
+ * The timers are resolved through a map from the route to its five status classes, which grows once
+ * per route and is read without locks. Timing a request does not allocate: the elapsed nanoseconds
+ * are recorded with {@link Timer#update(long, TimeUnit)}, not a {@link Timer.Context}. Once
+ * {@code maxRoutes} routes are known, the requests of any new route are recorded under the
+ * {@code "_other"} route.
+ * <p>
+ * An asynchronous request is recorded when its {@link javax.servlet.AsyncContext} completes, with the
+ * final status. An exception thrown by the chain is recorded as a 5xx.
+ * <p>
+ * The latencies of a timer are taken interval by interval by one reporter only, the
+ * {@code ElasticsearchReporter}. The actuator '/metrics' endpoint and the other readers of the
+ * registry see the interval last taken by it.
+ */
+@Slf4j
+public class RequestMetricsFilter implements Filter {
+	public static final String DEFAULT_PREFIX = "http.requests";
+	public static final int DEFAULT_MAX_ROUTES = 200;
+
+	/**
+	 * {@code HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE} of Spring MVC, which kona does not depend on.
+	 */
+	public static final String BEST_MATCHING_PATTERN_ATTRIBUTE =
+			"org.springframework.web.servlet.HandlerMapping.bestMatchingPattern";
+
+	private static final String UNMATCHED = "unmatched";
+	private static final String OTHER = "_other";
+	private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+	private final MetricRegistry registry;
+	private final String prefix;
+	private final int maxRoutes;
+	private final Function<HttpServletRequest, String> routeResolver;
+	private final ConcurrentMap<String, Route> routes;
+	private final Route other;
+
+	public static Builder forRegistry(MetricRegistry registry) {
+		return new Builder(registry);
+	}
+
+	public static class Builder {
+		private final MetricRegistry registry;
+		private String prefix;
+		private int maxRoutes;
+		private Function<HttpServletRequest, String> routeResolver;
+
+		private Builder(MetricRegistry registry) {
+			this.registry = registry;
+			this.prefix = DEFAULT_PREFIX;
+			this.maxRoutes = DEFAULT_MAX_ROUTES;
+			this.routeResolver = RequestMetricsFilter::handlerPattern;
+		}
+
+		public Builder prefix(String prefix) {
+			this.prefix = prefix;
+			return this;
+		}
+
+		/**
+		 * @param maxRoutes The number of routes timed on their own, the others share the {@code "_other"}
+		 *                  route.
+		 * @return
+		 */
+		public Builder maxRoutes(int maxRoutes) {
+			this.maxRoutes = maxRoutes;
+			return this;
+		}
+
+		/**
+		 * @param routeResolver The route of a handled request, of a bounded set of values such as the
+		 *                      URI templates. It is called on every request and should not allocate.
+		 * @return
+		 */
+		public Builder routeResolver(Function<HttpServletRequest, String> routeResolver) {
+			this.routeResolver = routeResolver;
+			return this;
+		}
+
+		public RequestMetricsFilter build() {
+			return new RequestMetricsFilter(registry, prefix, maxRoutes, routeResolver);
+		}
+	}
+
+	protected RequestMetricsFilter(MetricRegistry registry, String prefix, int maxRoutes,
+								   Function<HttpServletRequest, String> routeResolver) {
+		this.registry = registry;
+		this.prefix = prefix;
+		this.maxRoutes = Math.max(1, maxRoutes);
+		this.routeResolver = routeResolver;
+		this.routes = new ConcurrentHashMap<>();
+		this.other = new Route(MetricRegistry.name(prefix, OTHER));
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest) || request.getDispatcherType() != DispatcherType.REQUEST) {
+			chain.doFilter(request, response);
+			return;
+		}
+		final long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			chain.doFilter(request, response);
+			failed = false;
+		} finally {
+			if (!failed && request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new AsyncCompletion(start), request, response);
+			} else {
+				record((HttpServletRequest)request, (HttpServletResponse)response, start, failed);
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	private void record(HttpServletRequest request, HttpServletResponse response, long start, boolean failed) {
+		final long elapsed = System.nanoTime() - start;
+		try {
+			final int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus();
+			route(routeResolver.apply(request)).timer(status).update(elapsed, TimeUnit.NANOSECONDS);
+		} catch (RuntimeException e) {
+			log.debug("Fail! Recording the request metrics. {}", e.toString());
+		}
+	}
+
+	private Route route(String name) {
+		final String key = null != name ? name : UNMATCHED;
+		final Route route = routes.get(key);
+		if (null != route) {
+			return route;
+		}
+		if (routes.size() >= maxRoutes) {
+			return other;
+		}
+		return routes.computeIfAbsent(key, r -> new Route(MetricRegistry.name(prefix, metricName(r))));
+	}
+
+	private static String handlerPattern(HttpServletRequest request) {
+		final Object pattern = request.getAttribute(BEST_MATCHING_PATTERN_ATTRIBUTE);
+		return pattern instanceof String ? (String)pattern : UNMATCHED;
+	}
+
+	/**
+	 * @return The route as metric name segments, {@code "/users/{id}"} as {@code "users.{id}"}.
+	 */
+	static String metricName(String route) {
+		final StringBuilder name = new StringBuilder(route.length());
+		for (int i = 0; i < route.length(); i++) {
+			final char c = route.charAt(i);
+			if (c == '/') {
+				if (name.length() > 0 && name.charAt(name.length() - 1) != '.') {
+					name.append('.');
+				}
+			} else if (Character.isLetterOrDigit(c) || c == '{' || c == '}' || c == '-' || c == '_' || c == '*') {
+				name.append(c);
+			} else {
+				name.append('_');
+			}
+		}
+		if (name.length() > 0 && name.charAt(name.length() - 1) == '.') {
+			name.setLength(name.length() - 1);
+		}
+		return name.length() > 0 ? name.toString() : "root";
+	}
+
+	/**
+	 * The timers of a route, registered on the first request of each status class.
+	 */
+	private final class Route {
+		private final String name;
+		private final AtomicReferenceArray<Timer> timers;
+
+		Route(String name) {
+			this.name = name;
+			this.timers = new AtomicReferenceArray<>(STATUS_CLASSES.length);
+		}
+
+		Timer timer(int status) {
+			final int index = Math.min(STATUS_CLASSES.length - 1, Math.max(0, status / 100 - 1));
+			final Timer timer = timers.get(index);
+			return null != timer ? timer : register(index);
+		}
+
+		private synchronized Timer register(int index) {
+			Timer timer = timers.get(index);
+			if (null == timer) {
+				final String fullName = MetricRegistry.name(name, STATUS_CLASSES[index]);
+				try {
+					timer = registry.register(fullName, new Timer(new HdrHistogramReservoir()));
+				} catch (IllegalArgumentException e) {
+					// registered by another filter sharing the registry and the prefix.
+					final Metric existing = registry.getMetrics().get(fullName);
+					if (!(existing instanceof Timer)) {
+						throw e;
+					}
+					timer = (Timer)existing;
+				}
+				timers.set(index, timer);
+			}
+			return timer;
+		}
+	}
+
+	/**
+	 * Records an asynchronous request when it completes, after a timeout or an error as well.
+	 */
+	private final class AsyncCompletion implements AsyncListener {
+		private final long start;
+
+		AsyncCompletion(long start) {
+			this.start = start;
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			record((HttpServletRequest)event.getSuppliedRequest(), (HttpServletResponse)event.getSuppliedResponse(),
+					start, false);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// a new dispatch of the same request drops the listeners, they are added again.
+			event.getAsyncContext().addListener(this, event.getSuppliedRequest(), event.getSuppliedResponse());
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package org.horiga.kona.spring.annotation;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.annotation.Counted;
+import com.codahale.metrics.annotation.ExceptionMetered;
+import com.codahale.metrics.annotation.Metered;
+import com.codahale.metrics.annotation.Timed;
+import lombok.extern.slf4j.Slf4j;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.horiga.kona.metrics.HdrHistogramReservoir;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the calls of the bean methods annotated with {@link Timed}, {@link Metered},
+ * {@link Counted} and {@link ExceptionMetered}.
+ * <p>
+ * The metric of each annotated method is registered once, when the bean is created, and bound to an
+ * interceptor of that method only. The bean is wrapped in a frozen CGLIB proxy, whose interceptor
+ * chain is fixed per method as well, so a call records straight into its metric without building a
+ * name or looking up the registry. A bean which is already an unfrozen Spring AOP proxy gets the
+ * interceptors added to its chain instead.
+ * <p>
+ * The metric names follow the Dropwizard conventions: {@code {class}.{method}}, {@code {class}.{name}}
+ * when a name is given, the name alone when {@code absolute}, and a {@code .exceptions} suffix for
+ * {@link ExceptionMetered}. The timers are backed by an {@link HdrHistogramReservoir}, whose intervals
+ * belong to a single reporter: any other reader, such as the actuator, sees the last reported interval.
+ */
+@Slf4j
+public class MetricsAnnotationBeanPostProcessor implements BeanPostProcessor {
+	private final MetricRegistry registry;
+
+	public MetricsAnnotationBeanPostProcessor(MetricRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public Object postProcessBeforeInitialization(Object bean, String beanName) {
+		return bean;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		if (bean instanceof MetricRegistry) {
+			return bean;
+		}
+		final Class<?> targetClass = AopUtils.getTargetClass(bean);
+		final List<Advisor> advisors = advisors(targetClass);
+		if (advisors.isEmpty()) {
+			return bean;
+		}
+		if (bean instanceof Advised && !((Advised)bean).isFrozen()) {
+			// the metrics record the whole call, the other advices included.
+			for (int i = 0; i < advisors.size(); i++) {
+				((Advised)bean).addAdvisor(i, advisors.get(i));
+			}
+			return bean;
+		}
+		if (Modifier.isFinal(targetClass.getModifiers())) {
+			log.warn("The bean '{}' has metric annotations, but its class {} is final and cannot be proxied.",
+					beanName, targetClass.getName());
+			return bean;
+		}
+		final ProxyFactory proxy = new ProxyFactory(bean);
+		proxy.setProxyTargetClass(true);
+		proxy.addAdvisors(advisors);
+		// a frozen proxy of a singleton target fixes the interceptor chain of each method when it is built.
+		proxy.setFrozen(true);
+		return proxy.getProxy(ClassUtils.getDefaultClassLoader());
+	}
+
+	private List<Advisor> advisors(Class<?> targetClass) {
+		final List<Advisor> advisors = new ArrayList<>();
+		final String className = ClassUtils.getUserClass(targetClass).getName();
+		for (Method method : ReflectionUtils.getUniqueDeclaredMethods(targetClass)) {
+			final int modifiers = method.getModifiers();
+			if (method.isBridge() || method.isSynthetic() || Modifier.isStatic(modifiers)
+					|| Modifier.isPrivate(modifiers) || method.getDeclaringClass() == Object.class) {
+				continue;
+			}
+			final ExceptionMetered exceptionMetered = AnnotationUtils.findAnnotation(method, ExceptionMetered.class);
+			if (null != exceptionMetered) {
+				final String name = exceptionMetered.name().isEmpty()
+						? MetricRegistry.name(className, method.getName(), ExceptionMetered.DEFAULT_NAME_SUFFIX)
+						: name(className, method, exceptionMetered.name(), exceptionMetered.absolute());
+				advisors.add(advisor(method, new ExceptionMeteredInterceptor(register(name, new Meter()),
+						exceptionMetered.cause())));
+			}
+			final Timed timed = AnnotationUtils.findAnnotation(method, Timed.class);
+			if (null != timed) {
+				final String name = name(className, method, timed.name(), timed.absolute());
+				advisors.add(advisor(method, new TimedInterceptor(register(name, new Timer(new HdrHistogramReservoir())))));
+			}
+			final Metered metered = AnnotationUtils.findAnnotation(method, Metered.class);
+			if (null != metered) {
+				final String name = name(className, method, metered.name(), metered.absolute());
+				advisors.add(advisor(method, new MeteredInterceptor(register(name, new Meter()))));
+			}
+			final Counted counted = AnnotationUtils.findAnnotation(method, Counted.class);
+			if (null != counted) {
+				final String name = name(className, method, counted.name(), counted.absolute());
+				advisors.add(advisor(method, new CountedInterceptor(register(name, new Counter()), counted.monotonic())));
+			}
+		}
+		return advisors;
+	}
+
+	private static String name(String className, Method method, String name, boolean absolute) {
+		if (absolute && !name.isEmpty()) {
+			return name;
+		}
+		return MetricRegistry.name(className, name.isEmpty() ? method.getName() : name);
+	}
+
+	private static Advisor advisor(Method method, MethodInterceptor interceptor) {
+		return new DefaultPointcutAdvisor(new StaticMethodMatcherPointcut() {
+			@Override
+			public boolean matches(Method m, Class<?> targetClass) {
+				return method.equals(m) || method.equals(ClassUtils.getMostSpecificMethod(m, targetClass));
+			}
+		}, interceptor);
+	}
+
+	/**
+	 * @return The metric registered under the name, which may have been registered by another bean of
+	 * the same class or by the application.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(String name, T metric) {
+		try {
+			return registry.register(name, metric);
+		} catch (IllegalArgumentException e) {
+			final Metric existing = registry.getMetrics().get(name);
+			if (metric.getClass().isInstance(existing)) {
+				return (T)existing;
+			}
+			throw e;
+		}
+	}
+
+	private static final class TimedInterceptor implements MethodInterceptor {
+		private final Timer timer;
+
+		TimedInterceptor(Timer timer) {
+			this.timer = timer;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			final long start = System.nanoTime();
+			try {
+				return invocation.proceed();
+			} finally {
+				timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	private static final class MeteredInterceptor implements MethodInterceptor {
+		private final Meter meter;
+
+		MeteredInterceptor(Meter meter) {
+			this.meter = meter;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			meter.mark();
+			return invocation.proceed();
+		}
+	}
+
+	private static final class CountedInterceptor implements MethodInterceptor {
+		private final Counter counter;
+		private final boolean monotonic;
+
+		CountedInterceptor(Counter counter, boolean monotonic) {
+			this.counter = counter;
+			this.monotonic = monotonic;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			counter.inc();
+			try {
+				return invocation.proceed();
+			} finally {
+				// a non-monotonic counter holds the calls in progress.
+				if (!monotonic) {
+					counter.dec();
+				}
+			}
+		}
+	}
+
+	private static final class ExceptionMeteredInterceptor implements MethodInterceptor {
+		private final Meter meter;
+		private final Class<? extends Throwable> cause;
+
+		ExceptionMeteredInterceptor(Meter meter, Class<? extends Throwable> cause) {
+			this.meter = meter;
+			this.cause = cause;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			try {
+				return invocation.proceed();
+			} catch (Throwable t) {
+				if (cause.isInstance(t)) {
+					meter.mark();
+				}
+				throw t;
+			}
+		}
+	}
+}
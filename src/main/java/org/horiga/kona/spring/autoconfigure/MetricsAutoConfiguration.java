@@ -2,46 +2,86 @@ package org.horiga.kona.spring.autoconfigure;
 
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.MetricSet;
-import com.codahale.metrics.jvm.BufferPoolMetricSet;
-import com.codahale.metrics.jvm.CachedThreadStatesGaugeSet;
-import com.codahale.metrics.jvm.GarbageCollectorMetricSet;
-import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import lombok.extern.slf4j.Slf4j;
+import org.horiga.kona.metrics.JvmMetricSet;
+import org.horiga.kona.reporter.CardinalityGuard;
+import org.horiga.kona.reporter.DocumentLayout;
 import org.horiga.kona.reporter.ElasticsearchReporter;
+import org.horiga.kona.reporter.GaugeEvaluator;
+import org.horiga.kona.reporter.LogPreviewSink;
+import org.horiga.kona.reporter.MetricHistory;
+import org.horiga.kona.reporter.MetricRollup;
+import org.horiga.kona.reporter.RollingFileSink;
+import org.horiga.kona.servlet.RequestMetricsFilter;
+import org.horiga.kona.spring.annotation.MetricsAnnotationBeanPostProcessor;
+import org.horiga.kona.spring.endpoint.MetricHistoryEndpoint;
+import org.horiga.kona.spring.endpoint.MetricHistoryMvcEndpoint;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.autoconfigure.MetricRepositoryAutoConfiguration;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
 
-import java.lang.management.ManagementFactory;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Configuration
 @AutoConfigureAfter(MetricRepositoryAutoConfiguration.class)
 public class MetricsAutoConfiguration {
 
-	private final long THREAD_STATES_INTERVAL_MILLIS = 5000L;
-
+	public static final String JVM_METRIC_PREFIX = "jvm";
+	/**
+	 * @deprecated The JVM gauges are registered by a {@link JvmMetricSet} under {@link #JVM_METRIC_PREFIX},
+	 * with the same names.
+	 */
+	@Deprecated
 	public static final String JVM_MEMORY_METRIC_GAUGES = "jvm.memory";
+	/**
+	 * @deprecated See {@link #JVM_MEMORY_METRIC_GAUGES}.
+	 */
+	@Deprecated
 	public static final String JVM_THREADS_METRIC_GAUGES = "jvm.threads";
+	/**
+	 * @deprecated See {@link #JVM_MEMORY_METRIC_GAUGES}.
+	 */
+	@Deprecated
 	public static final String JVM_GARBAGE_COLLECTOR_METRIC_GAUGES = "jvm.gc";
+	/**
+	 * @deprecated See {@link #JVM_MEMORY_METRIC_GAUGES}.
+	 */
+	@Deprecated
 	public static final String JVM_BUFFERPOOLS_METRIC_GAUGES = "jvm.buffers";
 
-	@Value("${kona.metric.project:default")
+	@Value("${kona.metric.project:default}")
 	private String project;
 
 	/**
-	 * 'memory', 'threads', 'gc', 'buffers'
+	 * 'memory', 'threads', 'gc', 'buffers', 'classes', 'compilation', 'allocation', 'safepoints', 'cpu'
+	 * or 'all', see {@link JvmMetricSet}.
 	 */
-	@Value("${kona.metric.jvm:memory,threads")
+	@Value("${kona.metric.jvm:memory,threads}")
 	private String jvmMetrics;
 
+	/**
+	 * The number of threads reported by their CPU usage with the 'cpu' JVM metrics.
+	 */
+	@Value("${kona.metric.jvm.topThreads:" + JvmMetricSet.DEFAULT_TOP_THREADS + "}")
+	private int jvmTopThreads;
+
 	@Value("${kona.metric.reporter.intervalMillis:10000}")
 	private long intervalMillis;
 
@@ -51,6 +91,107 @@ public class MetricsAutoConfiguration {
 	@Value("${kona.metric.reporter.elasticsearch.hosts:NONE}")
 	private String elasticsearch;
 
+	/**
+	 * The reporter records its own metrics into the registry, so they are listed by the actuator
+	 * '/metrics' endpoint along with the application metrics. Its timers and histograms show the
+	 * interval of the last report cycle there: reading them does not take any value from the reporter.
+	 */
+	@Value("${kona.metric.reporter.self.prefix:kona.reporter}")
+	private String selfMetricsPrefix;
+
+	/**
+	 * 'true' to keep the metrics of the reporter out of the documents sent to Elasticsearch.
+	 */
+	@Value("${kona.metric.reporter.self.exclude:false}")
+	private boolean excludeSelfMetrics;
+
+	/**
+	 * 'PER_METRIC', 'PER_HOST' or 'PER_PREFIX', see {@link DocumentLayout}.
+	 */
+	@Value("${kona.metric.reporter.document.layout:PER_METRIC}")
+	private DocumentLayout documentLayout;
+
+	@Value("${kona.metric.reporter.document.maxFields:" + DocumentLayout.DEFAULT_MAX_FIELDS + "}")
+	private int documentMaxFields;
+
+	/**
+	 * ',' separated metric name patterns, such as 'jvm.memory.*', of the gauges, timers and histograms
+	 * sampled every 'kona.metric.reporter.rollup.sampleMillis' and reported as aggregates of the report
+	 * interval, see {@link MetricRollup}. The sampled gauges time out like the reported ones, after
+	 * 'kona.metric.reporter.gauges.timeoutMillis' when set.
+	 */
+	@Value("${kona.metric.reporter.rollup.patterns:}")
+	private String rollupPatterns;
+
+	@Value("${kona.metric.reporter.rollup.sampleMillis:1000}")
+	private long rollupSampleMillis;
+
+	/**
+	 * The directory of the rolling NDJSON files the documents are written to as well, see
+	 * {@link RollingFileSink}. Empty to disable.
+	 */
+	@Value("${kona.metric.reporter.file.directory:}")
+	private String fileSinkDirectory;
+
+	@Value("${kona.metric.reporter.file.maxBytes:" + RollingFileSink.DEFAULT_MAX_FILE_BYTES + "}")
+	private long fileSinkMaxBytes;
+
+	@Value("${kona.metric.reporter.file.maxFiles:" + RollingFileSink.DEFAULT_MAX_FILES + "}")
+	private int fileSinkMaxFiles;
+
+	/**
+	 * The number of batches per second logged at INFO by a {@link LogPreviewSink}, 0 to disable.
+	 */
+	@Value("${kona.metric.reporter.log.previewRate:0}")
+	private double logPreviewRate;
+
+	/**
+	 * The number of metrics reported per name prefix, 0 to disable the {@link CardinalityGuard}.
+	 */
+	@Value("${kona.metric.reporter.cardinality.limit:0}")
+	private int cardinalityLimit;
+
+	@Value("${kona.metric.reporter.cardinality.depth:" + CardinalityGuard.DEFAULT_DEPTH + "}")
+	private int cardinalityDepth;
+
+	/**
+	 * ',' separated limits of given prefixes, such as 'api.users=100,api.sessions=100'.
+	 */
+	@Value("${kona.metric.reporter.cardinality.limits:}")
+	private String cardinalityLimits;
+
+	/**
+	 * How long a report cycle waits for the gauges evaluated by a {@link GaugeEvaluator}, 0 to evaluate
+	 * them on the reporter thread.
+	 */
+	@Value("${kona.metric.reporter.gauges.timeoutMillis:0}")
+	private long gaugeTimeoutMillis;
+
+	@Value("${kona.metric.reporter.gauges.threads:" + GaugeEvaluator.DEFAULT_THREADS + "}")
+	private int gaugeThreads;
+
+	/**
+	 * 'true' to keep the values of the last 'kona.metric.history.capacity' report cycles in memory, see
+	 * {@link MetricHistory}. They are queried through the '/history' actuator endpoint.
+	 */
+	@Value("${kona.metric.history.enabled:false}")
+	private boolean historyEnabled;
+
+	@Value("${kona.metric.history.maxBytes:" + MetricHistory.DEFAULT_MAX_BYTES + "}")
+	private long historyMaxBytes;
+
+	@Value("${kona.metric.history.capacity:" + MetricHistory.DEFAULT_CAPACITY + "}")
+	private int historyCapacity;
+
+	/**
+	 * The name prefix of the request timers of the {@link RequestMetricsFilter}.
+	 */
+	@Value("${kona.metric.servlet.prefix:" + RequestMetricsFilter.DEFAULT_PREFIX + "}")
+	private String servletPrefix;
+
+	@Value("${kona.metric.servlet.maxRoutes:" + RequestMetricsFilter.DEFAULT_MAX_ROUTES + "}")
+	private int servletMaxRoutes;
+
 	@Bean
 	@ConditionalOnMissingBean
 	MetricFilter metricFilter() {
@@ -59,47 +200,124 @@ public class MetricsAutoConfiguration {
 
 	@Bean
 	@ConditionalOnMissingBean
-	public ElasticsearchReporter elasticsearchReporter(MetricRegistry registry, MetricFilter filter) {
+	public ElasticsearchReporter elasticsearchReporter(MetricRegistry registry, MetricFilter filter)
+		throws IOException {
 
 		registerJvmMetrics(registry);
 
 		final Map<String, String> additionalFields = Maps.newHashMap();
 		additionalFields.put("project", project);
-		ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry, elasticsearchIndexesPrefix)
+		ElasticsearchReporter.Builder builder = ElasticsearchReporter.forRegistry(registry, elasticsearchIndexesPrefix)
 			.filter(filter)
 			.enabled(!"NONE".equals(elasticsearch))
 			.additionalFields(additionalFields)
-			.withResettable()
-			.build(elasticsearch);
+			.selfMetricsPrefix(selfMetricsPrefix)
+			.documentLayout(documentLayout, documentMaxFields)
+			.withResettable();
+		if (excludeSelfMetrics) {
+			builder.excludeSelfMetrics();
+		}
+		if (!fileSinkDirectory.isEmpty()) {
+			builder.sink("file", new RollingFileSink(new File(fileSinkDirectory), "metrics-", fileSinkMaxBytes,
+				RollingFileSink.DEFAULT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS, fileSinkMaxFiles));
+		}
+		if (logPreviewRate > 0) {
+			builder.sink("log", new LogPreviewSink(logPreviewRate, LogPreviewSink.DEFAULT_MAX_BYTES));
+		}
+		if (cardinalityLimit > 0) {
+			final CardinalityGuard.Builder guard = CardinalityGuard.forRegistry(registry)
+				.depth(cardinalityDepth)
+				.defaultLimit(cardinalityLimit);
+			Splitter.on(",").omitEmptyStrings().trimResults().withKeyValueSeparator("=").split(cardinalityLimits)
+				.forEach((prefix, limit) -> guard.limit(prefix, Integer.parseInt(limit.trim())));
+			builder.cardinalityGuard(guard.build());
+		}
+		if (historyEnabled) {
+			builder.history(new MetricHistory(historyMaxBytes, historyCapacity));
+		}
+		if (gaugeTimeoutMillis > 0) {
+			builder.gaugeEvaluator(GaugeEvaluator.forRegistry(registry)
+				.timeout(gaugeTimeoutMillis, TimeUnit.MILLISECONDS)
+				.threads(gaugeThreads)
+				.build());
+		}
+		final List<String> patterns = Splitter.on(",").omitEmptyStrings().trimResults().splitToList(rollupPatterns);
+		if (!patterns.isEmpty()) {
+			final MetricRollup.Builder rollup = MetricRollup.forRegistry(registry)
+				.capacity((int)(intervalMillis / Math.max(1L, rollupSampleMillis)) + 1);
+			patterns.forEach(pattern -> rollup.rule(pattern, rollupSampleMillis, TimeUnit.MILLISECONDS));
+			if (gaugeTimeoutMillis > 0) {
+				rollup.gaugeTimeout(gaugeTimeoutMillis, TimeUnit.MILLISECONDS, gaugeThreads);
+			}
+			builder.rollup(rollup.build());
+		}
+		ElasticsearchReporter reporter = builder.build(elasticsearch);
 		reporter.start(intervalMillis, TimeUnit.MILLISECONDS);
 		return reporter;
 	}
 
+	@Bean
+	@ConditionalOnProperty("kona.metric.history.enabled")
+	public MetricHistoryEndpoint metricHistoryEndpoint(ElasticsearchReporter reporter) {
+		return new MetricHistoryEndpoint(reporter.getHistory());
+	}
+
+	/**
+	 * Records the calls of the methods annotated with '@Timed', '@Metered', '@Counted' and
+	 * '@ExceptionMetered', 'kona.metric.annotation.enabled=false' to disable.
+	 */
+	@Bean
+	@ConditionalOnProperty(value = "kona.metric.annotation.enabled", matchIfMissing = true)
+	public static MetricsAnnotationBeanPostProcessor metricsAnnotationBeanPostProcessor(MetricRegistry registry) {
+		return new MetricsAnnotationBeanPostProcessor(registry);
+	}
+
+	/**
+	 * Times the requests of a web application, 'kona.metric.servlet.enabled=false' to disable.
+	 */
+	@Bean
+	@ConditionalOnWebApplication
+	@ConditionalOnProperty(value = "kona.metric.servlet.enabled", matchIfMissing = true)
+	public FilterRegistrationBean requestMetricsFilter(MetricRegistry registry) {
+		final FilterRegistrationBean registration = new FilterRegistrationBean(RequestMetricsFilter.forRegistry(registry)
+			.prefix(servletPrefix)
+			.maxRoutes(servletMaxRoutes)
+			.build());
+		registration.setAsyncSupported(true);
+		// outermost, so that the other filters are timed as well.
+		registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+		registration.addUrlPatterns("/*");
+		return registration;
+	}
+
 	private void registerJvmMetrics(MetricRegistry registry) {
-		Splitter.on(",").omitEmptyStrings().trimResults().splitToList(jvmMetrics)
-			.stream().forEach(s -> {
-				if ("memory".equals(s)) {
-					registerMetricSet(registry, JVM_MEMORY_METRIC_GAUGES, new MemoryUsageGaugeSet());
-				} else if ("threads".equals(s)) {
-					registerMetricSet(registry, JVM_THREADS_METRIC_GAUGES, new CachedThreadStatesGaugeSet(
-						THREAD_STATES_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
-				} else if ("gc".equals(s)) {
-					registerMetricSet(registry, JVM_GARBAGE_COLLECTOR_METRIC_GAUGES,
-						new GarbageCollectorMetricSet());
-
-				} else if ("buffers".equals(s)) {
-					registerMetricSet(registry, JVM_BUFFERPOOLS_METRIC_GAUGES,
-						new BufferPoolMetricSet(ManagementFactory.getPlatformMBeanServer()));
-				}
-			});
+		final List<String> names = Splitter.on(",").omitEmptyStrings().trimResults().splitToList(jvmMetrics);
+		if (names.isEmpty()) {
+			return;
+		}
+		final Set<String> categories = names.contains("all") ? JvmMetricSet.ALL : ImmutableSet.copyOf(names);
+		// the set shares one MXBean sweep between its gauges, it is refreshed at most once per report.
+		final JvmMetricSet metrics = new JvmMetricSet(categories, jvmTopThreads,
+			Math.min(JvmMetricSet.DEFAULT_TTL_MILLIS, intervalMillis / 2), TimeUnit.MILLISECONDS);
+		try {
+			registry.register(JVM_METRIC_PREFIX, metrics);
+		} catch (IllegalArgumentException e) {
+			log.warn("The JVM metrics are already registered. {}", e.getMessage());
+		}
 	}
 
-	private void registerMetricSet(MetricRegistry registry, String name, MetricSet metric) {
-		if (registry.getNames().stream().filter(
-			s -> s.startsWith(name))
-			.findFirst()
-			.isPresent())
-			registry.register(name, metric);
+	/**
+	 * The '/history' endpoint taking a name pattern and a time range, in a web application.
+	 */
+	@Configuration
+	@ConditionalOnClass(name = "org.springframework.web.servlet.DispatcherServlet")
+	@ConditionalOnProperty("kona.metric.history.enabled")
+	static class MetricHistoryMvcConfiguration {
+
+		@Bean
+		public MetricHistoryMvcEndpoint metricHistoryMvcEndpoint(MetricHistoryEndpoint endpoint) {
+			return new MetricHistoryMvcEndpoint(endpoint);
+		}
 	}
 
 }
@@ -0,0 +1,34 @@
+package org.horiga.kona.spring.endpoint;
+
+import org.horiga.kona.reporter.MetricHistory;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The '/history' actuator endpoint, the summary of the {@link MetricHistory} of the reporter. The
+ * entries are queried through the {@link MetricHistoryMvcEndpoint}.
+ */
+public class MetricHistoryEndpoint extends AbstractEndpoint<Map<String, Object>> {
+	private final MetricHistory history;
+
+	public MetricHistoryEndpoint(MetricHistory history) {
+		super("history");
+		this.history = history;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		final Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("capacity", history.getCapacity());
+		summary.put("metrics", history.getMetrics());
+		summary.put("maxMetrics", history.getMaxMetrics());
+		summary.put("droppedEntries", history.getDroppedEntries());
+		return summary;
+	}
+
+	public MetricHistory getHistory() {
+		return history;
+	}
+}
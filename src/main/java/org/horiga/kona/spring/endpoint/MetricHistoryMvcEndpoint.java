@@ -0,0 +1,36 @@
+package org.horiga.kona.spring.endpoint;
+
+import org.springframework.boot.actuate.endpoint.mvc.EndpointMvcAdapter;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Queries the history kept by the reporter by metric name and time range:
+ * <pre>
+ * GET /history?pattern=jvm.memory.*
+ * GET /history?pattern=api.*.latency&amp;from=1451606400000&amp;to=1451606700000
+ * </pre>
+ * {@code from} and {@code to} are epoch milliseconds, the whole history by default. Without a
+ * pattern, the summary of the history is returned.
+ */
+public class MetricHistoryMvcEndpoint extends EndpointMvcAdapter {
+	private final MetricHistoryEndpoint delegate;
+
+	public MetricHistoryMvcEndpoint(MetricHistoryEndpoint delegate) {
+		super(delegate);
+		this.delegate = delegate;
+	}
+
+	@RequestMapping(method = RequestMethod.GET, params = "pattern")
+	@ResponseBody
+	public Object query(@RequestParam String pattern,
+						@RequestParam(required = false, defaultValue = "0") long from,
+						@RequestParam(required = false, defaultValue = "" + Long.MAX_VALUE) long to) {
+		if (!delegate.isEnabled()) {
+			return getDisabledResponse();
+		}
+		return delegate.getHistory().query(pattern, from, to);
+	}
+}
@@ -0,0 +1,61 @@
+package org.horiga.kona.metrics;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class HdrHistogramReservoirTest {
+	private final HdrHistogramReservoir reservoir = new HdrHistogramReservoir();
+	private final Timer timer = new Timer(reservoir);
+
+	@Test
+	public void takesTheValuesSinceThePreviousIntervalSnapshot() {
+		record(3);
+		assertEquals(3, HdrHistogramReservoir.intervalSnapshot(timer).size());
+		record(2);
+		assertEquals(2, HdrHistogramReservoir.intervalSnapshot(timer).size());
+		assertEquals(0, HdrHistogramReservoir.intervalSnapshot(timer).size());
+	}
+
+	@Test
+	public void otherReadersDoNotTakeTheIntervalsOfTheReporter() {
+		record(1);
+		HdrHistogramReservoir.intervalSnapshot(timer);
+		record(5);
+		// the actuator reads each field of the timer with its own snapshot.
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, timer.getSnapshot().size());
+		}
+		assertEquals(5, HdrHistogramReservoir.intervalSnapshot(timer).size());
+		assertEquals(5, timer.getSnapshot().size());
+	}
+
+	@Test
+	public void otherReadersDoNotOverwriteTheSnapshotOfTheReporter() {
+		record(4);
+		final Snapshot reported = HdrHistogramReservoir.intervalSnapshot(timer);
+		record(6);
+		timer.getSnapshot();
+		timer.getSnapshot();
+		assertEquals(4, reported.size());
+		assertEquals(4, reported.getValues().length);
+	}
+
+	@Test
+	public void snapshotsTheValuesSinceThePreviousOneWithoutReporter() {
+		record(2);
+		assertEquals(2, timer.getSnapshot().size());
+		record(1);
+		assertEquals(1, timer.getSnapshot().size());
+	}
+
+	private void record(int values) {
+		for (int i = 0; i < values; i++) {
+			timer.update(i + 1, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkResponseTest {
+	private static final String PARTLY_REJECTED = "{\"took\":7,\"errors\":true,\"items\":["
+			+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\",\"status\":201}},"
+			+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\",\"status\":429,\"error\":"
+			+ "{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution of ...\"}}},"
+			+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\",\"status\":400,\"error\":"
+			+ "{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse [count]\","
+			+ "\"caused_by\":{\"type\":\"number_format_exception\",\"reason\":\"For input string\"}}}},"
+			+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\",\"status\":201}},"
+			+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\",\"status\":429,\"error\":"
+			+ "{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution of ...\"}}},"
+			+ "{\"create\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\",\"status\":503,"
+			+ "\"error\":\"UnavailableShardsException[[m-2016.01.01][0] Primary shard is not active]\"}}]}";
+
+	private final MetricRegistry registry = new MetricRegistry();
+	private StubElasticsearch elasticsearch;
+	private ElasticsearchReporter reporter;
+	private BulkTransport transport;
+
+	@Before
+	public void setUp() throws IOException {
+		elasticsearch = new StubElasticsearch();
+		reporter = ElasticsearchReporter.forRegistry(registry, "m-")
+				.hostname("h")
+				.itemRetry(2, 1, 1, TimeUnit.MILLISECONDS)
+				.build(elasticsearch.endpoint());
+		transport = new BulkTransport(Collections.singletonList(elasticsearch.endpoint()), 1000, 1000,
+				BulkTransport.DEFAULT_FAILURE_THRESHOLD, BulkTransport.DEFAULT_OPEN_MILLIS, -1, 0);
+	}
+
+	@After
+	public void tearDown() {
+		reporter.stop();
+		transport.close();
+		elasticsearch.close();
+	}
+
+	@Test
+	public void skipsTheItemsOfAnAcceptedRequest() throws IOException {
+		final BulkResponse response = parse(200, "{\"took\":3,\"errors\":false,\"items\":["
+				+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"status\":201}},"
+				+ "{\"index\":{\"_index\":\"m-2016.01.01\",\"status\":201}}]}");
+		assertFalse(response.hasErrors());
+		assertEquals(0, response.getItems());
+		assertEquals(0, response.getFailures());
+		assertTrue(response.getFailureCounts().isEmpty());
+	}
+
+	@Test
+	public void readsTheFailedItemsOfAPartlyRejectedRequest() throws IOException {
+		final BulkResponse response = parse(200, PARTLY_REJECTED);
+		assertTrue(response.hasErrors());
+		assertEquals(6, response.getItems());
+		assertEquals(4, response.getFailures());
+		final int[] items = {1, 2, 4, 5};
+		final int[] statuses = {429, 400, 429, 503};
+		final boolean[] retryable = {true, false, true, true};
+		for (int i = 0; i < items.length; i++) {
+			assertEquals(items[i], response.getFailedItem(i));
+			assertEquals(statuses[i], response.getFailedStatus(i));
+			assertEquals(retryable[i], response.isRetryable(i));
+		}
+		assertEquals("mapper_parsing_exception", response.getFailureReason(1));
+		assertEquals(ImmutableMap.of("es_rejected_execution_exception", 2, "mapper_parsing_exception", 1,
+				"UnavailableShardsException", 1), response.getFailureCounts());
+	}
+
+	@Test
+	public void failsOnAMalformedBody() throws IOException {
+		for (String body : Arrays.asList("<html><body>Bad Gateway</body></html>",
+				"{\"took\":7,\"errors\":true,\"items\":[{\"index\":{\"status\":429,\"error\":{\"type\"")) {
+			try {
+				parse(200, body);
+				fail(body);
+			} catch (IOException expected) {
+				// the batch fails and is sent again.
+			}
+		}
+		assertEquals(0, parse(200, "[]").getFailures());
+	}
+
+	@Test
+	public void keepsOnlyTheRejectedDocumentsInTheBuffer() throws IOException {
+		final BulkBuffer bulk = bulk(6);
+		final BulkResponse response = parse(200, PARTLY_REJECTED);
+		final int[] positions = new int[response.getFailures()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = response.getFailedItem(i);
+		}
+		bulk.retain(positions, positions.length);
+		assertEquals(4, bulk.documents());
+		assertEquals(document(1) + document(2) + document(4) + document(5), string(bulk));
+	}
+
+	@Test
+	public void resendsOnlyTheItemsRejectedByABusyNode() throws IOException {
+		elasticsearch.respond(200, PARTLY_REJECTED)
+				.respond(200, "{\"took\":2,\"errors\":true,\"items\":["
+						+ "{\"index\":{\"status\":201}},"
+						+ "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+						+ "{\"index\":{\"status\":201}}]}");
+		reporter.sendBulkRequest(bulk(6), transport);
+
+		assertEquals(Arrays.asList(string(bulk(6)), document(1) + document(4) + document(5), document(4)),
+				elasticsearch.requests());
+		assertEquals(1L, count("items.dropped"));
+		assertEquals(4L, count("items.retries"));
+		assertEquals(3L, count("items.failures.es_rejected_execution_exception"));
+		assertEquals(1L, count("items.failures.mapper_parsing_exception"));
+		assertEquals(1L, count("items.failures.UnavailableShardsException"));
+	}
+
+	@Test
+	public void keepsTheItemsStillRejectedAfterTheLastRetry() throws IOException {
+		final String rejected = "{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}]}";
+		elasticsearch.respond(200, "{\"took\":1,\"errors\":true,\"items\":["
+						+ "{\"index\":{\"status\":201}},"
+						+ "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}]}")
+				.respond(200, rejected)
+				.respond(200, rejected);
+		final BulkBuffer bulk = bulk(2);
+		try {
+			reporter.sendBulkRequest(bulk, transport);
+			fail();
+		} catch (IOException expected) {
+			// the batch is spooled with the rejected items only.
+		}
+		assertEquals(3, elasticsearch.requests().size());
+		assertEquals(document(1), string(bulk));
+		assertEquals(0L, count("items.dropped"));
+	}
+
+	@Test
+	public void dropsARequestRejectedAsAWhole() throws IOException {
+		elasticsearch.respond(413, "{\"error\":\"Request Entity Too Large\"}")
+				.respond(503, "{\"error\":\"ClusterBlockException[blocked by: [SERVICE_UNAVAILABLE]]\"}")
+				.respond(429, "{\"error\":\"EsRejectedExecutionException[rejected execution]\"}");
+
+		try {
+			reporter.sendBulkRequest(bulk(3), transport);
+			fail();
+		} catch (IOException e) {
+			// not spooled: the documents would be rejected again.
+			assertTrue(e.getMessage(), e.getMessage().contains("status=413"));
+		}
+		assertEquals(3L, count("items.dropped"));
+		for (int status : new int[] {503, 429}) {
+			try {
+				reporter.sendBulkRequest(bulk(3), transport);
+				fail();
+			} catch (IOException e) {
+				// spooled and sent again.
+				assertTrue(e.getMessage(), e.getMessage().contains("not accepted, status=" + status));
+			}
+		}
+		assertEquals(3L, count("items.dropped"));
+		assertEquals(3, elasticsearch.requests().size());
+	}
+
+	private long count(String name) {
+		return registry.getCounters().get("kona.reporter." + name).getCount();
+	}
+
+	private static BulkResponse parse(int status, String body) throws IOException {
+		return BulkResponse.parse(status, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static BulkBuffer bulk(int documents) {
+		final BulkBuffer bulk = new BulkBuffer(64);
+		for (int i = 0; i < documents; i++) {
+			final byte[] document = document(i).getBytes(StandardCharsets.UTF_8);
+			bulk.write(document, 0, document.length);
+			bulk.documentWritten();
+		}
+		return bulk;
+	}
+
+	private static String document(int i) {
+		return "{\"index\":{\"_index\":\"m-2016.01.01\",\"_type\":\"metric\"}}\n{\"name\":\"c" + i + "\"}\n";
+	}
+
+	private static String string(BulkBuffer bulk) {
+		return new String(bulk.array(), 0, bulk.size(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,105 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkSpoolTest {
+	// room for 4 records of 50 bytes: 8 bytes of header, 4 * (8 + 50) bytes of records and the end mark.
+	private static final int SEGMENT_SIZE = 8 + 4 * 58 + 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private BulkSpool spool;
+	private List<String> sent;
+
+	@Before
+	public void setUp() throws IOException {
+		spool = new BulkSpool(folder.newFolder(), SEGMENT_SIZE, 1024 * 1024);
+		sent = new ArrayList<>();
+	}
+
+	@Test
+	public void replaysTheBatchesAfterAFullyReadSegmentIsRolled() throws IOException {
+		append(0);
+		assertEquals(1, replay());
+		append(1);
+		append(2);
+		append(3);
+		assertEquals(3, replay());
+		assertTrue(spool.isEmpty());
+
+		// the segment is full and fully read: the next batch goes to a new segment.
+		append(4);
+		assertFalse(spool.isEmpty());
+		assertEquals(1, replay());
+		assertTrue(spool.isEmpty());
+		assertEquals(5, sent.size());
+		assertEquals(batch(4), sent.get(4));
+	}
+
+	@Test
+	public void replaysTheBatchesOfEverySegmentInOrder() throws IOException {
+		append(0);
+		assertEquals(1, replay());
+		append(1);
+		append(2);
+		append(3);
+		append(4);
+		assertEquals(4, replay());
+		assertTrue(spool.isEmpty());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(batch(i), sent.get(i));
+		}
+	}
+
+	@Test
+	public void replacesAPartlyRejectedBatchByItsRejectedDocuments() throws IOException {
+		final BulkBuffer bulk = new BulkBuffer(64);
+		final byte[] bytes = (batch(0) + batch(1)).getBytes(StandardCharsets.UTF_8);
+		bulk.write(bytes, 0, bytes.length);
+		bulk.documentsWritten(2);
+		assertTrue(spool.append(bulk));
+
+		// the first document is accepted, the second one is still rejected after the retries.
+		assertEquals(0, spool.replay(new BulkBuffer(64), b -> {
+			b.retain(new int[]{1}, 1);
+			throw new IOException("rejected");
+		}, () -> true, RateLimiter.create(1000.0d)));
+		assertEquals(1, replay());
+		assertTrue(spool.isEmpty());
+		assertEquals(1, sent.size());
+		assertEquals(batch(1), sent.get(0));
+	}
+
+	private void append(int i) throws IOException {
+		final BulkBuffer bulk = new BulkBuffer(64);
+		final byte[] bytes = batch(i).getBytes(StandardCharsets.UTF_8);
+		bulk.write(bytes, 0, bytes.length);
+		bulk.documentWritten();
+		assertTrue(spool.append(bulk));
+	}
+
+	private int replay() {
+		return spool.replay(new BulkBuffer(64),
+				bulk -> sent.add(new String(bulk.array(), 0, bulk.size(), StandardCharsets.UTF_8)),
+				() -> true, RateLimiter.create(1000.0d));
+	}
+
+	private static String batch(int i) {
+		// 50 bytes
+		return String.format("{\"index\":{}}\n{\"batch\":%026d}\n", i);
+	}
+}
@@ -0,0 +1,176 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.base.Strings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkTransportTest {
+	private static final int FAILURE_THRESHOLD = 2;
+	private static final long OPEN_MILLIS = 100L;
+
+	private final AtomicInteger retries = new AtomicInteger();
+	private final BulkTransport.Listener listener = new BulkTransport.Listener() {
+		@Override
+		public void onRetry(ElasticsearchNode node) {
+			retries.incrementAndGet();
+		}
+	};
+	private StubElasticsearch first;
+	private StubElasticsearch second;
+	private BulkTransport transport;
+
+	@Before
+	public void setUp() throws IOException {
+		first = new StubElasticsearch();
+		second = new StubElasticsearch();
+	}
+
+	@After
+	public void tearDown() {
+		if (null != transport) {
+			transport.close();
+		}
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void failsOverToTheNextNodeOnA5xx() throws IOException {
+		transport = transport(first.endpoint(), second.endpoint());
+		first.respond(503, "{\"error\":\"ClusterBlockException[blocked by: [SERVICE_UNAVAILABLE]]\"}");
+
+		assertEquals(200, transport.send(bulk()).getStatus());
+		assertEquals(1, first.requests().size());
+		assertEquals(1, second.requests().size());
+		assertEquals(1, retries.get());
+		assertEquals(1L, node(0).getFailures());
+		assertEquals(0L, node(1).getFailures());
+
+		// the last 5xx is returned when no node accepted the request.
+		first.respond(503, "");
+		second.respond(503, "");
+		assertEquals(503, transport.send(bulk()).getStatus());
+		assertEquals(2, retries.get());
+	}
+
+	@Test
+	public void failsOverToTheNextNodeOnAnIOError() throws IOException {
+		transport = transport(unreachable(), second.endpoint());
+
+		assertEquals(200, transport.send(bulk()).getStatus());
+		assertEquals(1, second.requests().size());
+		assertEquals(1, retries.get());
+		assertEquals(1L, node(0).getFailures());
+	}
+
+	@Test
+	public void opensTheCircuitOfAFailingNodeAndProbesItOnceItsWaitHasElapsed() throws Exception {
+		transport = transport(first.endpoint());
+		final ElasticsearchNode node = node(0);
+		for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+			first.respond(503, "");
+			assertEquals(503, transport.send(bulk()).getStatus());
+		}
+		assertEquals(ElasticsearchNode.State.OPEN, node.getState());
+		assertFalse(transport.hasHealthyNode());
+		assertNotSent();
+		assertEquals(FAILURE_THRESHOLD, first.requests().size());
+
+		// a failed probe opens the circuit again at once.
+		Thread.sleep(OPEN_MILLIS * 3 / 2);
+		first.respond(503, "");
+		assertEquals(503, transport.send(bulk()).getStatus());
+		assertEquals(ElasticsearchNode.State.OPEN, node.getState());
+		assertNotSent();
+
+		Thread.sleep(OPEN_MILLIS * 3 / 2);
+		assertEquals(200, transport.send(bulk()).getStatus());
+		assertEquals(ElasticsearchNode.State.CLOSED, node.getState());
+		assertTrue(transport.hasHealthyNode());
+		assertEquals(FAILURE_THRESHOLD + 2, first.requests().size());
+	}
+
+	@Test
+	public void sendsASingleProbeToAHalfOpenNode() throws Exception {
+		transport = transport(first.endpoint());
+		final ElasticsearchNode node = node(0);
+		for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+			node.onFailure(0L, System.currentTimeMillis());
+		}
+		Thread.sleep(OPEN_MILLIS * 3 / 2);
+
+		assertTrue(node.tryAcquire(System.currentTimeMillis()));
+		assertEquals(ElasticsearchNode.State.HALF_OPEN, node.getState());
+		// the other requests wait for the outcome of the probe.
+		assertNotSent();
+		assertTrue(first.requests().isEmpty());
+		node.onSuccess(0L);
+		assertEquals(200, transport.send(bulk()).getStatus());
+	}
+
+	@Test
+	public void readsTheResponsesToTheEndToReuseTheConnection() throws IOException {
+		transport = transport(first.endpoint());
+		// the items of an accepted request are not parsed, but drained.
+		final String items = Strings.repeat("{\"index\":{\"_index\":\"m-2016.01.01\",\"status\":201}},", 2000);
+		first.respond(200, "{\"took\":3,\"errors\":false,\"items\":[" + items + "{}]}")
+				.respond(400, "{\"error\":\"" + Strings.repeat("x", 64 * 1024) + "\"}")
+				.respond(503, Strings.repeat("y", 64 * 1024));
+
+		assertEquals(200, transport.send(bulk()).getStatus());
+		assertEquals(400, transport.send(bulk()).getStatus());
+		assertEquals(503, transport.send(bulk()).getStatus());
+		assertEquals(200, transport.send(bulk()).getStatus());
+
+		final List<Integer> ports = first.clientPorts();
+		assertEquals(4, ports.size());
+		assertEquals(1L, ports.stream().distinct().count());
+	}
+
+	private void assertNotSent() throws IOException {
+		try {
+			transport.send(bulk());
+			fail();
+		} catch (IOException expected) {
+			// no node is available.
+		}
+	}
+
+	private BulkTransport transport(String... endpoints) {
+		return new BulkTransport(Arrays.asList(endpoints), 1000, 1000, FAILURE_THRESHOLD, OPEN_MILLIS, -1, 0,
+				listener);
+	}
+
+	private ElasticsearchNode node(int i) {
+		return transport.getNodes().get(i);
+	}
+
+	private static String unreachable() throws IOException {
+		try (ServerSocket socket = new ServerSocket()) {
+			socket.bind(new InetSocketAddress("127.0.0.1", 0));
+			return "127.0.0.1:" + socket.getLocalPort();
+		}
+	}
+
+	private static BulkBuffer bulk() {
+		final BulkBuffer bulk = new BulkBuffer(64);
+		final byte[] document = "{\"index\":{}}\n{\"name\":\"c\"}\n".getBytes(StandardCharsets.UTF_8);
+		bulk.write(document, 0, document.length);
+		bulk.documentWritten();
+		return bulk;
+	}
+}
@@ -0,0 +1,131 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import org.horiga.kona.metrics.Resettable;
+import org.horiga.kona.metrics.ResettableCounter;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CardinalityGuardTest {
+	private final MetricRegistry registry = new MetricRegistry();
+
+	@Test
+	public void tripsAPrefixOnceItHasMoreNamesThanItsLimit() {
+		final CardinalityGuard guard = CardinalityGuard.forRegistry(registry).limit("api", 3).build();
+		final MetricFilter filter = guard.filter(MetricFilter.ALL);
+		for (int i = 0; i < 3; i++) {
+			registry.counter("api.user" + i);
+		}
+		registry.counter("jvm.threads");
+		assertEquals(Collections.emptyList(), guard.beginCycle());
+		assertEquals(4, reported(filter).size());
+
+		registry.counter("api.user3");
+		registry.counter("api.user4");
+		assertEquals(Collections.singletonList("api"), guard.beginCycle());
+		assertEquals(5, guard.estimate("api"));
+		assertEquals(Collections.emptyList(), guard.beginCycle());
+		// the prefixes under their limit are not affected.
+		assertTrue(reported(filter).contains("jvm.threads"));
+		assertEquals(4, reported(filter).size());
+	}
+
+	@Test
+	public void reportsTheLargestCountsAndRollsUpTheOthers() {
+		final CardinalityGuard guard = CardinalityGuard.forRegistry(registry).limit("api", 2).build();
+		final MetricFilter filter = guard.filter(MetricFilter.ALL);
+		registry.counter("api.a").inc(5);
+		registry.counter("api.b").inc(50);
+		registry.counter("api.c").inc(20);
+		registry.counter("api.d").inc(1);
+		registry.register("api.g", (Gauge<Integer>)() -> 1000);
+
+		guard.beginCycle();
+		assertEquals(names("api.b", "api.c"), reported(filter));
+		// gauges are ranked last.
+		assertTrue(registry.getGauges(filter).keySet().stream().noneMatch("api.g"::equals));
+		assertEquals(5L + 1L, registry.getGauges(filter).get("api._other").getValue());
+		assertEquals(3, registry.getGauges(filter).get("api._other.metrics").getValue());
+
+		guard.close();
+		assertTrue(registry.getGauges().keySet().stream().noneMatch(name -> name.contains("_other")));
+	}
+
+	@Test
+	public void ranksTheCountersResetByTheReporterByTheirCountsSinceTheReset() {
+		final CardinalityGuard guard = CardinalityGuard.forRegistry(registry).limit("p", 2).build();
+		guard.countersReset(true);
+		final MetricFilter filter = guard.filter(MetricFilter.ALL);
+		final Counter reset = registry.counter("p.reset");
+		final ResettableCounter resettable = registry.register("p.resettable", new ResettableCounter());
+		final Counter[] quiet = {registry.counter("p.quiet0"), registry.counter("p.quiet1"),
+				registry.counter("p.quiet2")};
+
+		for (int cycle = 0; cycle < 5; cycle++) {
+			reset.inc(10);
+			resettable.inc(10);
+			for (Counter counter : quiet) {
+				counter.inc();
+			}
+			guard.beginCycle();
+			assertEquals(names("p.reset", "p.resettable"), reported(filter));
+			report(filter, true);
+		}
+	}
+
+	@Test
+	public void ranksTheCountersNotResetByTheirGrowth() {
+		final CardinalityGuard guard = CardinalityGuard.forRegistry(registry).limit("p", 2).build();
+		final MetricFilter filter = guard.filter(MetricFilter.ALL);
+		final Counter old = registry.counter("p.old");
+		old.inc(1000);
+		final ResettableCounter resettable = registry.register("p.resettable", new ResettableCounter());
+		final Counter growing = registry.counter("p.growing");
+		final Counter quiet = registry.counter("p.quiet");
+
+		guard.beginCycle();
+		assertTrue(reported(filter).contains("p.old"));
+		report(filter, false);
+		for (int cycle = 0; cycle < 3; cycle++) {
+			resettable.inc(5);
+			growing.inc(10);
+			quiet.inc();
+			guard.beginCycle();
+			assertEquals(names("p.growing", "p.resettable"), reported(filter));
+			report(filter, false);
+		}
+	}
+
+	/**
+	 * Resets the counters like the reporter does.
+	 */
+	private void report(MetricFilter filter, boolean countersReset) {
+		registry.getCounters(filter).forEach((name, counter) -> {
+			if (counter instanceof Resettable) {
+				((Resettable)counter).getAndReset();
+			} else if (countersReset) {
+				counter.dec(counter.getCount());
+			}
+		});
+	}
+
+	private Set<String> reported(MetricFilter filter) {
+		final Set<String> names = new TreeSet<>(registry.getCounters(filter).keySet());
+		names.removeIf(name -> name.contains("_other"));
+		return names;
+	}
+
+	private static Set<String> names(String... names) {
+		return new TreeSet<>(Arrays.asList(names));
+	}
+}
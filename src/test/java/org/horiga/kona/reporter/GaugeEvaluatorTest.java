@@ -0,0 +1,204 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GaugeEvaluatorTest {
+	private static final long TIMEOUT_MILLIS = 50L;
+
+	private final MetricRegistry registry = new MetricRegistry();
+	private final RecordingListener listener = new RecordingListener();
+	private final CountDownLatch released = new CountDownLatch(1);
+	private GaugeEvaluator evaluator;
+
+	@Before
+	public void setUp() {
+		evaluator = evaluator(1000);
+	}
+
+	@After
+	public void tearDown() {
+		released.countDown();
+		evaluator.close();
+	}
+
+	@Test
+	public void timesOutOnlyTheSlowGaugeOfASharedThread() throws InterruptedException {
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		// submitted first, the fast gauges are queued behind it on the only thread, and the last of them
+		// starts close to the end of the wait of the cycle.
+		registry.register("a.slow", (Gauge<Integer>)() -> {
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				interrupted.set(true);
+				throw new IllegalStateException(e);
+			}
+			return 0;
+		});
+		for (int i = 0; i < 3; i++) {
+			final int value = i;
+			registry.register("b.fast" + i, (Gauge<Integer>)() -> {
+				sleep(TIMEOUT_MILLIS * 2 / 5);
+				return value;
+			});
+		}
+
+		for (int cycle = 0; cycle < 20; cycle++) {
+			evaluator.evaluate(registry.getGauges(), listener);
+			Thread.sleep(TIMEOUT_MILLIS / 5);
+		}
+
+		assertEquals(Collections.nCopies(2, "a.slow"), listener.timeouts);
+		assertEquals(Collections.singletonList("a.slow"), listener.slow);
+		assertTrue(interrupted.get());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i, evaluator.get("b.fast" + i).getValue());
+		}
+	}
+
+	@Test
+	public void reportsTheLastValueOfARunningGaugeAsStale() throws InterruptedException {
+		final LatchGauge gauge = new LatchGauge();
+		registry.register("gauge", gauge);
+
+		evaluator.evaluate(registry.getGauges(), listener);
+		assertEquals(1, evaluator.get("gauge").getValue());
+		assertFalse(evaluator.get("gauge").isStale());
+
+		gauge.block();
+		evaluator.evaluate(registry.getGauges(), listener);
+		assertEquals(1, evaluator.get("gauge").getValue());
+		assertTrue(evaluator.get("gauge").isStale());
+		assertEquals(Collections.singletonList(1), listener.stale);
+
+		gauge.release();
+		Thread.sleep(TIMEOUT_MILLIS / 5);
+		evaluator.evaluate(registry.getGauges(), listener);
+		assertEquals(3, evaluator.get("gauge").getValue());
+		assertFalse(evaluator.get("gauge").isStale());
+	}
+
+	@Test
+	public void interruptsAHungGaugeAndEvaluatesItLessOftenUntilItRecovers() throws InterruptedException {
+		evaluator.close();
+		evaluator = evaluator(3);
+		final LatchGauge gauge = new LatchGauge();
+		registry.register("gauge", gauge);
+
+		// each run hangs until it is interrupted, and is counted as one timeout.
+		gauge.block();
+		for (int cycle = 0; cycle < 20 && listener.slow.isEmpty(); cycle++) {
+			evaluator.evaluate(registry.getGauges(), listener);
+			Thread.sleep(TIMEOUT_MILLIS * 2);
+		}
+		assertEquals(Collections.nCopies(2, "gauge"), listener.timeouts);
+		assertEquals(Collections.singletonList("gauge"), listener.slow);
+		assertTrue(gauge.interrupted.tryAcquire(2, 1, TimeUnit.SECONDS));
+		assertTrue(listener.recovered.isEmpty());
+
+		gauge.release();
+		Thread.sleep(TIMEOUT_MILLIS / 5);
+		final int evaluations = gauge.evaluations.get();
+		// a slow gauge is skipped by 2 cycles out of 3.
+		for (int cycle = 0; cycle < 2; cycle++) {
+			evaluator.evaluate(registry.getGauges(), listener);
+			assertTrue(evaluator.get("gauge").isStale());
+		}
+		assertEquals(evaluations, gauge.evaluations.get());
+
+		evaluator.evaluate(registry.getGauges(), listener);
+		assertEquals(evaluations + 1, gauge.evaluations.get());
+		assertFalse(evaluator.get("gauge").isStale());
+		assertEquals(Collections.singletonList("gauge"), listener.recovered);
+		assertEquals(2, listener.timeouts.size());
+	}
+
+	private GaugeEvaluator evaluator(int slowEvery) {
+		return GaugeEvaluator.forRegistry(registry)
+				.timeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+				.threads(1)
+				.slow(2, slowEvery)
+				.build();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of its evaluations, once its gate is open.
+	 */
+	private static final class LatchGauge implements Gauge<Integer> {
+		private final AtomicInteger evaluations = new AtomicInteger();
+		private final Semaphore interrupted = new Semaphore(0);
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		@Override
+		public Integer getValue() {
+			final int evaluation = evaluations.incrementAndGet();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				interrupted.release();
+				throw new IllegalStateException(e);
+			}
+			return evaluation;
+		}
+
+		void block() {
+			gate = new CountDownLatch(1);
+		}
+
+		void release() {
+			gate.countDown();
+		}
+	}
+
+	private static final class RecordingListener implements GaugeEvaluator.Listener {
+		private final List<String> timeouts = Collections.synchronizedList(new ArrayList<>());
+		private final List<String> slow = Collections.synchronizedList(new ArrayList<>());
+		private final List<String> recovered = Collections.synchronizedList(new ArrayList<>());
+		private final List<Integer> stale = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onTimeout(String name) {
+			timeouts.add(name);
+		}
+
+		@Override
+		public void onSlow(String name, Gauge<Long> evaluationMillis) {
+			slow.add(name);
+		}
+
+		@Override
+		public void onRecovered(String name) {
+			recovered.add(name);
+		}
+
+		@Override
+		public void onStale(int gauges) {
+			stale.add(gauges);
+		}
+	}
+}
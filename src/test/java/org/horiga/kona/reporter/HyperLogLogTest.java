@@ -0,0 +1,37 @@
+package org.horiga.kona.reporter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest {
+
+	@Test
+	public void estimatesTenThousandDistinctNamesWithinTheStandardError() {
+		final HyperLogLog names = new HyperLogLog();
+		for (int i = 0; i < 10000; i++) {
+			names.add("api.users." + i + ".latency");
+		}
+		// 3 standard errors of 1.04 / sqrt(1024).
+		final double error = Math.abs(names.estimate() - 10000) / 10000.0d;
+		assertTrue("error " + error, error < 3 * 1.04d / Math.sqrt(1024));
+	}
+
+	@Test
+	public void countsTheNamesAddedAgainOnce() {
+		final HyperLogLog names = new HyperLogLog();
+		for (int n = 0; n < 3; n++) {
+			for (int i = 0; i < 100; i++) {
+				names.add("api.users." + i);
+			}
+		}
+		// linear counting is close to exact for the small cardinalities.
+		assertEquals(100, names.estimate(), 5);
+	}
+
+	@Test
+	public void estimatesNothingBeforeTheFirstName() {
+		assertEquals(0, new HyperLogLog().estimate());
+	}
+}
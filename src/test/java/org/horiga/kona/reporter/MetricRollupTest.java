@@ -0,0 +1,70 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricRollupTest {
+	private static final long SAMPLE_MILLIS = 10L;
+	private static final long TIMEOUT_MILLIS = 50L;
+
+	private final MetricRegistry registry = new MetricRegistry();
+	private final CountDownLatch released = new CountDownLatch(1);
+	private final MetricRollup rollup = MetricRollup.forRegistry(registry)
+			.rule("*", SAMPLE_MILLIS, TimeUnit.MILLISECONDS)
+			.gaugeTimeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, 2)
+			.build();
+
+	@After
+	public void tearDown() {
+		released.countDown();
+		rollup.close();
+	}
+
+	@Test
+	public void aggregatesTheSamplesOfAGaugeSinceThePreviousReport() throws InterruptedException {
+		final AtomicInteger value = new AtomicInteger();
+		registry.register("gauge", (Gauge<Integer>)value::incrementAndGet);
+
+		Thread.sleep(SAMPLE_MILLIS * 10);
+		final MetricRollup.GaugeWindow window = rollup.gaugeWindow("gauge");
+		assertTrue(window.getCount() > 1);
+		assertEquals(1.0, window.getMin(), 0.0);
+		assertEquals(window.getCount(), window.getMax(), 0.0);
+		assertEquals(window.getMax(), window.getLast(), 0.0);
+	}
+
+	@Test
+	public void keepsSamplingTheOtherGaugesWhileOneHangsAndInterruptsIt() throws InterruptedException {
+		final Semaphore interrupted = new Semaphore(0);
+		final AtomicInteger calls = new AtomicInteger();
+		registry.register("hung", (Gauge<Integer>)() -> {
+			calls.incrementAndGet();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				interrupted.release();
+				throw new IllegalStateException(e);
+			}
+			return 0;
+		});
+		registry.register("fast", (Gauge<Integer>)() -> 1);
+
+		Thread.sleep(TIMEOUT_MILLIS * 4);
+		assertTrue(interrupted.tryAcquire(2, 1, TimeUnit.SECONDS));
+		// a running gauge is not sampled again until it has returned or been interrupted.
+		assertTrue(calls.get() <= interrupted.availablePermits() + 3);
+		assertNull(rollup.gaugeWindow("hung"));
+		assertTrue(rollup.gaugeWindow("fast").getCount() >= TIMEOUT_MILLIS * 2 / SAMPLE_MILLIS);
+	}
+}
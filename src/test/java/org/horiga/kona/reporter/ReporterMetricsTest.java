@@ -0,0 +1,30 @@
+package org.horiga.kona.reporter;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.horiga.kona.metrics.HdrHistogramReservoir;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReporterMetricsTest {
+	private final MetricRegistry registry = new MetricRegistry();
+	private final ReporterMetrics metrics = new ReporterMetrics(registry, ReporterMetrics.DEFAULT_PREFIX);
+
+	@Test
+	public void readingTheCycleTimersDoesNotEmptyTheNextReport() {
+		final Timer collect = registry.getTimers().get("kona.reporter.cycle.collect");
+		metrics.onCycle(TimeUnit.MILLISECONDS.toNanos(1), 0L, 0L);
+		metrics.onCycle(TimeUnit.MILLISECONDS.toNanos(2), 0L, 0L);
+
+		// the actuator '/metrics' endpoint reads one snapshot per field, before the first report.
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, collect.getSnapshot().size());
+		}
+		assertEquals(2, HdrHistogramReservoir.intervalSnapshot(collect).size());
+		assertEquals(2, collect.getSnapshot().size());
+		assertEquals(2, collect.getSnapshot().size());
+	}
+}
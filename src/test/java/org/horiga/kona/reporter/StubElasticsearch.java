@@ -0,0 +1,82 @@
+package org.horiga.kona.reporter;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A local '_bulk' endpoint answering the requests with canned responses, and recording their bodies
+ * and the client port of their connections.
+ */
+final class StubElasticsearch implements Closeable {
+	static final String ACCEPTED = "{\"took\":1,\"errors\":false,\"items\":[]}";
+
+	private final HttpServer server;
+	private final Queue<Response> responses = new ConcurrentLinkedQueue<>();
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+	private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<>());
+
+	StubElasticsearch() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/_bulk", this::handle);
+		server.start();
+	}
+
+	String endpoint() {
+		return "127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Answers the next request, the following ones are accepted once the canned responses are used.
+	 */
+	StubElasticsearch respond(int status, String body) {
+		responses.offer(new Response(status, body));
+		return this;
+	}
+
+	List<String> requests() {
+		return requests;
+	}
+
+	List<Integer> clientPorts() {
+		return clientPorts;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.add(new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+		clientPorts.add(exchange.getRemoteAddress().getPort());
+		final Response response = responses.poll();
+		final byte[] body = (null != response ? response.body : ACCEPTED).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(null != response ? response.status : 200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static final class Response {
+		private final int status;
+		private final String body;
+
+		Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+}